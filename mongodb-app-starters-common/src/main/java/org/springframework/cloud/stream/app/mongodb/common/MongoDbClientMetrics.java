@@ -0,0 +1,220 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandEvent;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import org.springframework.util.Assert;
+
+/**
+ * The Micrometer meters of the MongoDB client connection pools and commands, registered
+ * on the client as a {@code ConnectionPoolListener} and a {@link CommandListener}:
+ * <ul>
+ * <li>{@code mongodb.driver.pool.size} - a gauge of the connections of the pool;</li>
+ * <li>{@code mongodb.driver.pool.maxsize} - a gauge of the max size of the pool;</li>
+ * <li>{@code mongodb.driver.pool.checkedout} - a gauge of the connections in use;</li>
+ * <li>{@code mongodb.driver.pool.waitqueuesize} - a gauge of the threads waiting for a connection,
+ * which only grows once the pool is exhausted;</li>
+ * <li>{@code mongodb.driver.commands} - a timer of the commands, with a {@code command} and
+ * a {@code status} tag ({@code SUCCESS} or {@code FAILED}).</li>
+ * </ul>
+ * The meters are tagged by {@code client}, the name of the client the instance is registered on,
+ * {@code cluster.id} and {@code server.address}, so the pools of several clients of an application,
+ * e.g. a blocking and a reactive one, are reported apart. The pool meters are removed when the pool
+ * is closed. An instance is meant for a single client.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class MongoDbClientMetrics extends ConnectionPoolListenerAdapter implements CommandListener {
+
+	public static final String POOL_SIZE = "mongodb.driver.pool.size";
+
+	public static final String POOL_MAX_SIZE = "mongodb.driver.pool.maxsize";
+
+	public static final String POOL_CHECKED_OUT = "mongodb.driver.pool.checkedout";
+
+	public static final String POOL_WAIT_QUEUE_SIZE = "mongodb.driver.pool.waitqueuesize";
+
+	public static final String COMMANDS = "mongodb.driver.commands";
+
+	private final MeterRegistry meterRegistry;
+
+	private final String client;
+
+	private final Map<ServerId, Pool> pools = new ConcurrentHashMap<>();
+
+	/**
+	 * Create an instance registering the meters of a client in the provided {@link MeterRegistry}.
+	 *
+	 * @param meterRegistry the meter registry.
+	 * @param client the name of the client, the value of the {@code client} tag.
+	 */
+	public MongoDbClientMetrics(MeterRegistry meterRegistry, String client) {
+		Assert.notNull(meterRegistry, "'meterRegistry' must not be null");
+		Assert.hasText(client, "'client' must not be empty");
+		this.meterRegistry = meterRegistry;
+		this.client = client;
+	}
+
+	@Override
+	public void connectionPoolOpened(ConnectionPoolOpenedEvent event) {
+		Pool pool = new Pool();
+		Tags tags = tags(event.getServerId());
+		int maxSize = event.getSettings().getMaxSize();
+		pool.meters.add(Gauge.builder(POOL_SIZE, pool.size, AtomicInteger::get)
+				.tags(tags)
+				.register(this.meterRegistry));
+		pool.meters.add(Gauge.builder(POOL_MAX_SIZE, () -> maxSize)
+				.tags(tags)
+				.register(this.meterRegistry));
+		pool.meters.add(Gauge.builder(POOL_CHECKED_OUT, pool.checkedOut, AtomicInteger::get)
+				.tags(tags)
+				.register(this.meterRegistry));
+		pool.meters.add(Gauge.builder(POOL_WAIT_QUEUE_SIZE, pool.waitQueueSize, AtomicInteger::get)
+				.tags(tags)
+				.register(this.meterRegistry));
+		this.pools.put(event.getServerId(), pool);
+	}
+
+	@Override
+	public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+		Pool pool = this.pools.remove(event.getServerId());
+		if (pool != null) {
+			pool.meters.forEach(this.meterRegistry::remove);
+		}
+	}
+
+	@Override
+	public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+		Pool pool = this.pools.get(event.getConnectionId().getServerId());
+		if (pool != null) {
+			pool.checkedOut.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+		Pool pool = this.pools.get(event.getConnectionId().getServerId());
+		if (pool != null) {
+			pool.checkedOut.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+		Pool pool = this.pools.get(event.getServerId());
+		if (pool != null) {
+			pool.waitQueueSize.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+		Pool pool = this.pools.get(event.getServerId());
+		if (pool != null) {
+			pool.waitQueueSize.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void connectionAdded(ConnectionAddedEvent event) {
+		Pool pool = this.pools.get(event.getConnectionId().getServerId());
+		if (pool != null) {
+			pool.size.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void connectionRemoved(ConnectionRemovedEvent event) {
+		Pool pool = this.pools.get(event.getConnectionId().getServerId());
+		if (pool != null) {
+			pool.size.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		recordCommand(event, "SUCCESS", event.getElapsedTime(TimeUnit.NANOSECONDS));
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		recordCommand(event, "FAILED", event.getElapsedTime(TimeUnit.NANOSECONDS));
+	}
+
+	private void recordCommand(CommandEvent event, String status, long elapsedTime) {
+		Timer.builder(COMMANDS)
+				.tags(tags(event.getConnectionDescription().getConnectionId().getServerId()))
+				.tag("command", event.getCommandName())
+				.tag("status", status)
+				.register(this.meterRegistry)
+				.record(elapsedTime, TimeUnit.NANOSECONDS);
+	}
+
+	private Tags tags(ServerId serverId) {
+		return Tags.of("client", this.client,
+				"cluster.id", serverId.getClusterId().getValue(),
+				"server.address", serverId.getAddress().toString());
+	}
+
+	/**
+	 * The counters of a connection pool, and the meters reading them.
+	 */
+	private static final class Pool {
+
+		private final AtomicInteger size = new AtomicInteger();
+
+		private final AtomicInteger checkedOut = new AtomicInteger();
+
+		private final AtomicInteger waitQueueSize = new AtomicInteger();
+
+		private final List<Meter> meters = new ArrayList<>();
+
+	}
+
+}
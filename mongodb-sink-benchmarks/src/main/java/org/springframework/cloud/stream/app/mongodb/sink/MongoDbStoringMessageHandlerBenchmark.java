@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.expression.common.LiteralExpression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.integration.support.MutableMessage;
+import org.springframework.messaging.Message;
+
+/**
+ * Measures the throughput of {@link MongoDbStoringMessageHandler#handleMessageInternal(Message)}
+ * per {@code op_type}, payload type and collection expression, against an in-process
+ * {@link MongoOperations} stand-in which does not perform any I/O.
+ * <p>
+ * {@code byte[]} payloads are converted with the {@link JsonBytesToBsonEncoder} on every
+ * invocation, the same way the sink input channel interceptor does.
+ * Run with {@code -prof gc} to report the allocation rate per operation.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MongoDbStoringMessageHandlerBenchmark {
+
+	private static final String DOCUMENT =
+			"{\"uniqueId\": 123456789, \"firstName\": \"Foo\", \"lastName\": \"Bar\", "
+					+ "\"age\": 42, \"score\": 12.5, \"active\": true, "
+					+ "\"address\": {\"street\": \"Main Street\", \"city\": \"Springfield\"}, "
+					+ "\"tags\": [\"a\", \"b\", \"c\"]}";
+
+	private static final String KEY = "{\"uniqueId\": 123456789}";
+
+	private static final UpdateResult UPDATE_RESULT = UpdateResult.acknowledged(1, 1L, null);
+
+	private static final DeleteResult DELETE_RESULT = DeleteResult.acknowledged(1);
+
+	@Param({ "insert", "update", "delete" })
+	private String opType;
+
+	@Param({ "string", "bytes" })
+	private String payload;
+
+	@Param({ "literal", "spel" })
+	private String collection;
+
+	private final JsonBytesToBsonEncoder encoder = new JsonBytesToBsonEncoder();
+
+	private MongoDbStoringMessageHandler handler;
+
+	private Message<String> message;
+
+	private byte[] bytes;
+
+	@Setup
+	public void setup() {
+		this.handler = new MongoDbStoringMessageHandler(stubMongoOperations());
+		this.handler.setCollectionNameExpression("spel".equals(this.collection)
+				? new SpelExpressionParser().parseExpression("headers['collection']")
+				: new LiteralExpression("benchmark"));
+		this.handler.setUniqueFieldName("uniqueId");
+		this.handler.setBeanFactory(new DefaultListableBeanFactory());
+		this.handler.afterPropertiesSet();
+
+		String json = "delete".equals(this.opType) ? KEY : DOCUMENT;
+		this.message = MessageBuilder.withPayload(json)
+				.setHeader(MongoDbStoringMessageHandler.OPERATION_TYPE, this.opType)
+				.setHeader("collection", "benchmark")
+				.build();
+		this.bytes = json.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public void handleMessage() throws Exception {
+		if ("bytes".equals(this.payload)) {
+			this.handler.handleMessageInternal(
+					new MutableMessage<>(this.encoder.encode(this.bytes), this.message.getHeaders()));
+		}
+		else {
+			this.handler.handleMessageInternal(this.message);
+		}
+	}
+
+	/**
+	 * A {@link MongoOperations} which returns canned results. Like the {@code MongoTemplate},
+	 * it parses {@code String} documents on {@code save()}. The collections it returns
+	 * accept the driver level writes without any encoding.
+	 */
+	private static MongoOperations stubMongoOperations() {
+		MongoCollection<?> collection = (MongoCollection<?>) Proxy.newProxyInstance(
+				MongoCollection.class.getClassLoader(),
+				new Class<?>[] { MongoCollection.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "withDocumentClass":
+							return proxy;
+						case "replaceOne":
+							return UPDATE_RESULT;
+						case "toString":
+							return "StubMongoCollection";
+						default:
+							return null;
+					}
+				});
+		return (MongoOperations) Proxy.newProxyInstance(MongoOperations.class.getClassLoader(),
+				new Class<?>[] { MongoOperations.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "getCollection":
+							return collection;
+						case "save":
+							return args[0] instanceof String ? Document.parse((String) args[0]) : args[0];
+						case "updateMulti":
+							return UPDATE_RESULT;
+						case "remove":
+							return DELETE_RESULT;
+						case "toString":
+							return "StubMongoOperations";
+						default:
+							return null;
+					}
+				});
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+
+/**
+ * Adapts the size and the timeout of the sink batches to the observed bulk write latency.
+ * <p>
+ * The latencies of the bulk writes are collected over a window of {@value #WINDOW} flushes.
+ * When the max latency of the window exceeds the target latency, the batch size is halved; when it
+ * stays well below the target while the batches are filled up, i.e. there is a backlog,
+ * the batch size grows by a quarter. The batch size is kept between {@code 1} and the
+ * configured max, which it starts from, and the batch timeout is scaled down with it, so a
+ * small batch of a lightly loaded sink is not held back for the whole configured timeout.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+class AdaptiveBatchSizer {
+
+	static final int WINDOW = 20;
+
+	private static final double HEADROOM = 0.75;
+
+	private final long targetLatency;
+
+	private final int maxSize;
+
+	private final long maxTimeout;
+
+	private final long[] latencies = new long[WINDOW];
+
+	private int samples;
+
+	private boolean backlogged;
+
+	private volatile int size;
+
+	/**
+	 * @param targetLatency the target max bulk write latency in milliseconds.
+	 * @param maxSize the max batch size.
+	 * @param maxTimeout the batch timeout of the max batch size, in milliseconds.
+	 */
+	AdaptiveBatchSizer(long targetLatency, int maxSize, long maxTimeout) {
+		Assert.isTrue(targetLatency > 0, "'targetLatency' must be greater than 0");
+		Assert.isTrue(maxSize > 0, "'maxSize' must be greater than 0");
+		this.targetLatency = TimeUnit.MILLISECONDS.toNanos(targetLatency);
+		this.maxSize = maxSize;
+		this.maxTimeout = maxTimeout;
+		this.size = maxSize;
+	}
+
+	/**
+	 * @return the current batch size.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the current batch timeout in milliseconds.
+	 */
+	long timeout() {
+		return Math.max(1, this.maxTimeout * this.size / this.maxSize);
+	}
+
+	/**
+	 * Record the latency of a bulk write, adapting the batch size at the end of each window.
+	 * @param latency the bulk write latency in nanoseconds.
+	 * @param writes the number of writes of the bulk operation.
+	 */
+	synchronized void record(long latency, int writes) {
+		this.latencies[this.samples++] = latency;
+		this.backlogged |= writes >= this.size;
+		if (this.samples < WINDOW) {
+			return;
+		}
+		long maxLatency = Arrays.stream(this.latencies).max().getAsLong();
+		if (maxLatency > this.targetLatency) {
+			this.size = Math.max(1, this.size / 2);
+		}
+		else if (this.backlogged && maxLatency < this.targetLatency * HEADROOM) {
+			this.size = Math.min(this.maxSize, this.size + Math.max(1, this.size / 4));
+		}
+		this.samples = 0;
+		this.backlogged = false;
+	}
+
+}
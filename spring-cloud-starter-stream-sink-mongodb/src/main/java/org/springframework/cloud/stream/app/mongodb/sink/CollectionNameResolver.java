@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.common.LiteralExpression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.messaging.Message;
+import org.springframework.util.Assert;
+
+/**
+ * Resolves the collection name of a message, cheapest source first:
+ * the collection header when it is present, then a literal collection name
+ * without any evaluation, and finally the collection name expression.
+ * SpEL expressions are re-parsed in the {@link SpelCompilerMode#IMMEDIATE} mode,
+ * so they are compiled to bytecode after their first evaluation when possible.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+class CollectionNameResolver {
+
+	private static final SpelExpressionParser COMPILING_PARSER = new SpelExpressionParser(
+			new SpelParserConfiguration(SpelCompilerMode.IMMEDIATE, CollectionNameResolver.class.getClassLoader()));
+
+	private final String collectionHeader;
+
+	private final String collectionName;
+
+	private final Expression collectionNameExpression;
+
+	private final EvaluationContext evaluationContext;
+
+	CollectionNameResolver(Expression collectionNameExpression, String collectionHeader,
+			EvaluationContext evaluationContext) {
+
+		this.collectionHeader = collectionHeader;
+		this.evaluationContext = evaluationContext;
+		if (collectionNameExpression instanceof LiteralExpression) {
+			this.collectionName = collectionNameExpression.getExpressionString();
+			this.collectionNameExpression = null;
+		}
+		else {
+			this.collectionName = null;
+			this.collectionNameExpression = collectionNameExpression instanceof SpelExpression
+					? COMPILING_PARSER.parseExpression(collectionNameExpression.getExpressionString())
+					: collectionNameExpression;
+		}
+	}
+
+	String resolve(Message<?> message) {
+		if (this.collectionHeader != null) {
+			Object header = message.getHeaders().get(this.collectionHeader);
+			if (header instanceof String) {
+				return (String) header;
+			}
+			if (header instanceof byte[]) {
+				return new String((byte[]) header, StandardCharsets.UTF_8);
+			}
+			if (header != null) {
+				return header.toString();
+			}
+		}
+		String collectionName = this.collectionNameExpression != null
+				? this.collectionNameExpression.getValue(this.evaluationContext, message, String.class)
+				: this.collectionName;
+		Assert.notNull(collectionName, "'collectionNameExpression' must not evaluate to null");
+		return collectionName;
+	}
+
+}
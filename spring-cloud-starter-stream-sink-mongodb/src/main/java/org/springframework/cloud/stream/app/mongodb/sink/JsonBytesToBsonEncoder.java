@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.bson.BsonBinaryWriter;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.json.JsonParseException;
+
+/**
+ * Streams a UTF-8 JSON object from a {@code byte[]} straight into BSON, without
+ * creating an intermediate {@link String} or a mutable document. The BSON is written
+ * into a per-thread reusable output buffer and exposed as a {@link RawBsonDocument}.
+ * <p>
+ * Numbers are mapped the same way as {@link org.bson.Document#parse(String)} does:
+ * {@code int32} or {@code int64} when they fit and {@code double} otherwise.
+ * Payloads which are not plain JSON objects (e.g. extended JSON with {@code $} operators)
+ * are not encoded and {@code null} is returned, so the caller can fall back to text parsing.
+ * An object followed by anything but whitespace is rejected rather than truncated.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class JsonBytesToBsonEncoder {
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+
+	private final ThreadLocal<BasicOutputBuffer> buffers =
+			ThreadLocal.withInitial(() -> new BasicOutputBuffer(INITIAL_BUFFER_SIZE));
+
+	/**
+	 * Encode the provided JSON bytes into a {@link RawBsonDocument}.
+	 *
+	 * @param json the UTF-8 JSON bytes.
+	 * @return the BSON document or {@code null} if the bytes are not a plain JSON object.
+	 * @throws JsonParseException if the JSON object is followed by other content.
+	 */
+	public RawBsonDocument encode(byte[] json) {
+		BasicOutputBuffer buffer = this.buffers.get();
+		buffer.truncateToPosition(0);
+		BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+		try (JsonParser parser = this.jsonFactory.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT || !writeDocument(parser, writer)) {
+				return null;
+			}
+			if (hasTrailingContent(parser)) {
+				throw new JsonParseException("Unexpected content after the JSON object at offset "
+						+ parser.getCurrentLocation().getByteOffset());
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+		return new RawBsonDocument(buffer.toByteArray());
+	}
+
+	private static boolean hasTrailingContent(JsonParser parser) {
+		try {
+			return parser.nextToken() != null;
+		}
+		catch (IOException e) {
+			return true;
+		}
+	}
+
+	private static boolean writeDocument(JsonParser parser, BsonBinaryWriter writer) throws IOException {
+		writer.writeStartDocument();
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			if (name.startsWith("$")) {
+				return false;
+			}
+			writer.writeName(name);
+			if (!writeValue(parser, parser.nextToken(), writer)) {
+				return false;
+			}
+		}
+		if (token != JsonToken.END_OBJECT) {
+			return false;
+		}
+		writer.writeEndDocument();
+		return true;
+	}
+
+	private static boolean writeArray(JsonParser parser, BsonBinaryWriter writer) throws IOException {
+		writer.writeStartArray();
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == null || !writeValue(parser, token, writer)) {
+				return false;
+			}
+		}
+		writer.writeEndArray();
+		return true;
+	}
+
+	private static boolean writeValue(JsonParser parser, JsonToken token, BsonBinaryWriter writer)
+			throws IOException {
+
+		if (token == null) {
+			return false;
+		}
+		switch (token) {
+			case START_OBJECT:
+				return writeDocument(parser, writer);
+			case START_ARRAY:
+				return writeArray(parser, writer);
+			case VALUE_STRING:
+				writer.writeString(parser.getText());
+				return true;
+			case VALUE_NUMBER_INT:
+				switch (parser.getNumberType()) {
+					case INT:
+						writer.writeInt32(parser.getIntValue());
+						break;
+					case LONG:
+						writer.writeInt64(parser.getLongValue());
+						break;
+					default:
+						writer.writeDouble(parser.getDoubleValue());
+						break;
+				}
+				return true;
+			case VALUE_NUMBER_FLOAT:
+				writer.writeDouble(parser.getDoubleValue());
+				return true;
+			case VALUE_TRUE:
+				writer.writeBoolean(true);
+				return true;
+			case VALUE_FALSE:
+				writer.writeBoolean(false);
+				return true;
+			case VALUE_NULL:
+				writer.writeNull();
+				return true;
+			default:
+				return false;
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoClientOptions;
+import com.mongodb.connection.ConnectionPoolSettings;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.cloud.stream.app.mongodb.common.MongoDbClientMetrics;
+import org.springframework.cloud.stream.app.mongodb.sink.MongoDbSinkProperties.PoolProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Customizes the Boot auto-configured {@code MongoClient}s of the sink: sizes their connection
+ * pools with the 'pool' properties and instruments them with the {@link MongoDbClientMetrics}.
+ * The unset properties keep the driver defaults, and the options of the 'spring.data.mongodb.uri',
+ * if any, take precedence for the blocking client. The meters of the clients are told apart by their
+ * {@code client} tag, {@code blocking} or {@code reactive}.
+ * <p>
+ * Kept apart from the {@link MongodbSinkConfiguration}, which depends on the clients.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+@Configuration
+public class MongoDbClientConfiguration {
+
+	private final MongoDbSinkProperties properties;
+
+	private final MeterRegistry meterRegistry;
+
+	public MongoDbClientConfiguration(MongoDbSinkProperties properties,
+			ObjectProvider<MeterRegistry> meterRegistry) {
+
+		this.properties = properties;
+		this.meterRegistry = meterRegistry.getIfAvailable(() -> Metrics.globalRegistry);
+	}
+
+	/**
+	 * The value of the {@code client} tag of the blocking client meters.
+	 */
+	public static final String BLOCKING_CLIENT = "blocking";
+
+	/**
+	 * The value of the {@code client} tag of the reactive client meters.
+	 */
+	public static final String REACTIVE_CLIENT = "reactive";
+
+	@Bean
+	public MongoClientOptions mongoClientOptions() {
+		PoolProperties pool = this.properties.getPool();
+		MongoClientOptions.Builder options = MongoClientOptions.builder();
+		if (pool.getMaxSize() != null) {
+			options.connectionsPerHost(pool.getMaxSize());
+		}
+		if (pool.getMinSize() != null) {
+			options.minConnectionsPerHost(pool.getMinSize());
+		}
+		if (pool.getMaxWaitTime() != null) {
+			options.maxWaitTime(pool.getMaxWaitTime().intValue());
+		}
+		if (pool.getWaitQueueMultiple() != null) {
+			options.threadsAllowedToBlockForConnectionMultiplier(pool.getWaitQueueMultiple());
+		}
+		if (pool.getMaxConnectionIdleTime() != null) {
+			options.maxConnectionIdleTime(pool.getMaxConnectionIdleTime().intValue());
+		}
+		if (pool.getMaxConnectionLifeTime() != null) {
+			options.maxConnectionLifeTime(pool.getMaxConnectionLifeTime().intValue());
+		}
+		MongoDbClientMetrics clientMetrics = new MongoDbClientMetrics(this.meterRegistry, BLOCKING_CLIENT);
+		return options.addConnectionPoolListener(clientMetrics)
+				.addCommandListener(clientMetrics)
+				.build();
+	}
+
+	@Bean
+	public MongoClientSettingsBuilderCustomizer mongoClientSettingsPoolCustomizer() {
+		PoolProperties pool = this.properties.getPool();
+		MongoDbClientMetrics clientMetrics = new MongoDbClientMetrics(this.meterRegistry, REACTIVE_CLIENT);
+		return settings -> settings
+				.addCommandListener(clientMetrics)
+				.applyToConnectionPoolSettings(poolSettings -> {
+					if (pool.getMaxSize() != null) {
+						poolSettings.maxSize(pool.getMaxSize());
+					}
+					if (pool.getMinSize() != null) {
+						poolSettings.minSize(pool.getMinSize());
+					}
+					if (pool.getMaxWaitTime() != null) {
+						poolSettings.maxWaitTime(pool.getMaxWaitTime(), TimeUnit.MILLISECONDS);
+					}
+					if (pool.getWaitQueueMultiple() != null) {
+						int maxSize = pool.getMaxSize() != null
+								? pool.getMaxSize()
+								: ConnectionPoolSettings.builder().build().getMaxSize();
+						poolSettings.maxWaitQueueSize(pool.getWaitQueueMultiple() * maxSize);
+					}
+					if (pool.getMaxConnectionIdleTime() != null) {
+						poolSettings.maxConnectionIdleTime(pool.getMaxConnectionIdleTime(), TimeUnit.MILLISECONDS);
+					}
+					if (pool.getMaxConnectionLifeTime() != null) {
+						poolSettings.maxConnectionLifeTime(pool.getMaxConnectionLifeTime(), TimeUnit.MILLISECONDS);
+					}
+					poolSettings.addConnectionPoolListener(clientMetrics);
+				});
+	}
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.springframework.util.Assert;
+
+/**
+ * The Micrometer meters of the MongoDB sink, tagged by {@code collection} and {@code operation}
+ * ({@code insert}, {@code replace} for the inserts of the upsert mode, {@code update}, {@code delete}
+ * or {@code bulk} for the batch flushes):
+ * <ul>
+ * <li>{@code mongodb.sink.writes} - a timer of the write round trips, with an {@code outcome}
+ * tag ({@code success} or {@code failure}) and a percentile histogram;</li>
+ * <li>{@code mongodb.sink.documents} - a counter of the documents affected by the writes, with
+ * a {@code result} tag ({@code inserted}, {@code matched}, {@code modified}, {@code upserted}
+ * or {@code deleted});</li>
+ * <li>{@code mongodb.sink.failures} - a counter of the failed writes, with an {@code exception} tag;</li>
+ * <li>{@code mongodb.sink.batch.size} - a summary of the number of writes per bulk operation;</li>
+ * <li>{@code mongodb.sink.batch.limit} - a gauge of the batch size adapted to the bulk write latency,
+ * when a target latency is set.</li>
+ * </ul>
+ * The meters are cached per collection and operation, so they are not looked up in the registry
+ * on every write, except the failure counter whose {@code exception} tag is only known on failure.
+ * <p>
+ * Since the collections may be routed by a header or an expression, only the first
+ * {@link #setMaxCollections(int) maxCollections} collections written to get their own
+ * {@code collection} tag; the writes to the others are tagged {@value #OTHER_COLLECTION},
+ * so the number of meters stays bounded.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class MongoDbSinkMetrics {
+
+	public static final String WRITES = "mongodb.sink.writes";
+
+	public static final String DOCUMENTS = "mongodb.sink.documents";
+
+	public static final String FAILURES = "mongodb.sink.failures";
+
+	public static final String BATCH_SIZE = "mongodb.sink.batch.size";
+
+	public static final String BATCH_LIMIT = "mongodb.sink.batch.limit";
+
+	/**
+	 * The {@code collection} tag of the writes to the collections over the max.
+	 */
+	public static final String OTHER_COLLECTION = "other";
+
+	/**
+	 * The default max number of collections tagged on the meters.
+	 */
+	public static final int DEFAULT_MAX_COLLECTIONS = 100;
+
+	private static final String INSERT = "insert";
+
+	private static final String REPLACE = "replace";
+
+	private static final String UPDATE = "update";
+
+	private static final String DELETE = "delete";
+
+	private static final String BULK = "bulk";
+
+	private final MeterRegistry meterRegistry;
+
+	private final Map<String, Map<String, Meters>> meters = new ConcurrentHashMap<>();
+
+	private final Set<String> collections = ConcurrentHashMap.newKeySet();
+
+	private volatile int maxCollections = DEFAULT_MAX_COLLECTIONS;
+
+	/**
+	 * Create an instance registering the meters in the provided {@link MeterRegistry}.
+	 *
+	 * @param meterRegistry the meter registry.
+	 */
+	public MongoDbSinkMetrics(MeterRegistry meterRegistry) {
+		Assert.notNull(meterRegistry, "'meterRegistry' must not be null");
+		this.meterRegistry = meterRegistry;
+	}
+
+	/**
+	 * Set the max number of collections tagged on the meters, the writes to the others being
+	 * tagged {@value #OTHER_COLLECTION}. Defaults to {@value #DEFAULT_MAX_COLLECTIONS}.
+	 *
+	 * @param maxCollections the max number of collections.
+	 */
+	public void setMaxCollections(int maxCollections) {
+		Assert.isTrue(maxCollections >= 0, "'maxCollections' must not be negative");
+		this.maxCollections = maxCollections;
+	}
+
+	/**
+	 * @return the start time to pass to the record methods.
+	 */
+	long start() {
+		return this.meterRegistry.config().clock().monotonicTime();
+	}
+
+	void registerBatchLimit(AdaptiveBatchSizer batchSizer) {
+		Gauge.builder(BATCH_LIMIT, batchSizer, AdaptiveBatchSizer::size)
+				.register(this.meterRegistry);
+	}
+
+	void recordInsert(String collection, long start) {
+		Meters meters = meters(collection, INSERT);
+		meters.stop(start);
+		meters.inserted.increment();
+	}
+
+	void recordUpdate(String collection, long start, UpdateResult result) {
+		record(meters(collection, UPDATE), start, result);
+	}
+
+	void recordReplace(String collection, long start, UpdateResult result) {
+		record(meters(collection, REPLACE), start, result);
+	}
+
+	private void record(Meters meters, long start, UpdateResult result) {
+		meters.stop(start);
+		if (!result.wasAcknowledged()) {
+			return;
+		}
+		meters.matched.increment(result.getMatchedCount());
+		if (result.isModifiedCountAvailable()) {
+			meters.modified.increment(result.getModifiedCount());
+		}
+		if (result.getUpsertedId() != null) {
+			meters.upserted.increment();
+		}
+	}
+
+	void recordDelete(String collection, long start, DeleteResult result) {
+		Meters meters = meters(collection, DELETE);
+		meters.stop(start);
+		if (result.wasAcknowledged()) {
+			meters.deleted.increment(result.getDeletedCount());
+		}
+	}
+
+	void recordBulk(String collection, long start, int size, BulkWriteResult result) {
+		Meters meters = meters(collection, BULK);
+		meters.stop(start);
+		meters.batchSize.record(size);
+		if (!result.wasAcknowledged()) {
+			return;
+		}
+		meters.inserted.increment(result.getInsertedCount());
+		meters.matched.increment(result.getMatchedCount());
+		if (result.isModifiedCountAvailable()) {
+			meters.modified.increment(result.getModifiedCount());
+		}
+		meters.upserted.increment(result.getUpserts().size());
+		meters.deleted.increment(result.getDeletedCount());
+	}
+
+	void recordFailure(String collection, MongoDbStoringMessageHandler.OperationType operationType, boolean upsert,
+			long start, Throwable failure) {
+
+		switch (operationType) {
+			case UPDATE:
+				recordFailure(collection, UPDATE, start, failure);
+				break;
+			case DELETE:
+				recordFailure(collection, DELETE, start, failure);
+				break;
+			default:
+				recordFailure(collection, upsert ? REPLACE : INSERT, start, failure);
+				break;
+		}
+	}
+
+	private void recordFailure(String collection, String operation, long start, Throwable failure) {
+		Meters meters = meters(collection, operation);
+		meters.failed.record(this.meterRegistry.config().clock().monotonicTime() - start, TimeUnit.NANOSECONDS);
+		Counter.builder(FAILURES)
+				.tag("collection", collectionTag(collection))
+				.tag("operation", operation)
+				.tag("exception", failure.getClass().getSimpleName())
+				.register(this.meterRegistry)
+				.increment();
+	}
+
+	void recordBulkFailure(String collection, long start, int size, Throwable failure) {
+		meters(collection, BULK).batchSize.record(size);
+		recordFailure(collection, BULK, start, failure);
+	}
+
+	private Meters meters(String collection, String operation) {
+		String collectionTag = collectionTag(collection);
+		return this.meters.computeIfAbsent(operation, key -> new ConcurrentHashMap<>())
+				.computeIfAbsent(collectionTag, key -> new Meters(collectionTag, operation));
+	}
+
+	private String collectionTag(String collection) {
+		if (this.collections.contains(collection)) {
+			return collection;
+		}
+		if (this.collections.size() < this.maxCollections) {
+			synchronized (this.collections) {
+				if (this.collections.size() < this.maxCollections) {
+					this.collections.add(collection);
+					return collection;
+				}
+			}
+		}
+		return OTHER_COLLECTION;
+	}
+
+	private final class Meters {
+
+		private final Timer succeeded;
+
+		private final Timer failed;
+
+		private final Counter inserted;
+
+		private final Counter matched;
+
+		private final Counter modified;
+
+		private final Counter upserted;
+
+		private final Counter deleted;
+
+		private final DistributionSummary batchSize;
+
+		Meters(String collection, String operation) {
+			this.succeeded = timer(collection, operation, "success");
+			this.failed = timer(collection, operation, "failure");
+			this.inserted = counter(collection, operation, "inserted");
+			this.matched = counter(collection, operation, "matched");
+			this.modified = counter(collection, operation, "modified");
+			this.upserted = counter(collection, operation, "upserted");
+			this.deleted = counter(collection, operation, "deleted");
+			this.batchSize = DistributionSummary.builder(BATCH_SIZE)
+					.tag("collection", collection)
+					.register(MongoDbSinkMetrics.this.meterRegistry);
+		}
+
+		void stop(long start) {
+			this.succeeded.record(MongoDbSinkMetrics.this.meterRegistry.config().clock().monotonicTime() - start,
+					TimeUnit.NANOSECONDS);
+		}
+
+		private Timer timer(String collection, String operation, String outcome) {
+			return Timer.builder(WRITES)
+					.tag("collection", collection)
+					.tag("operation", operation)
+					.tag("outcome", outcome)
+					.publishPercentileHistogram()
+					.register(MongoDbSinkMetrics.this.meterRegistry);
+		}
+
+		private Counter counter(String collection, String operation, String result) {
+			return Counter.builder(DOCUMENTS)
+					.tag("collection", collection)
+					.tag("operation", operation)
+					.tag("result", result)
+					.register(MongoDbSinkMetrics.this.meterRegistry);
+		}
+
+	}
+
+}
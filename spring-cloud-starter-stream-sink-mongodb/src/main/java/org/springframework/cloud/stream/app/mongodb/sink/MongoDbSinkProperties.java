@@ -16,7 +16,9 @@
 
 package org.springframework.cloud.stream.app.mongodb.sink;
 
+import javax.validation.Valid;
 import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Min;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.expression.Expression;
@@ -70,9 +72,471 @@ public class MongoDbSinkProperties {
 		return collectionExpression;
 	}
 
-	@AssertTrue(message = "One of 'collection' or 'collectionExpression' is required")
+	/**
+	 * The message header holding the collection name, taking precedence over 'collection' and 'collectionExpression' when present
+	 */
+	private String collectionHeader;
+
+	/**
+	 * The max number of collection handles cached for the writes bypassing the MongoTemplate
+	 */
+	@Min(1)
+	private int collectionCacheSize = 100;
+
+	/**
+	 * The max number of collections tagged on the sink meters, the writes to the others being tagged 'other'
+	 */
+	@Min(0)
+	private int metricsMaxCollections = 100;
+
+	public String getCollectionHeader() {
+		return collectionHeader;
+	}
+
+	public void setCollectionHeader(String collectionHeader) {
+		this.collectionHeader = collectionHeader;
+	}
+
+	public int getCollectionCacheSize() {
+		return collectionCacheSize;
+	}
+
+	public void setCollectionCacheSize(int collectionCacheSize) {
+		this.collectionCacheSize = collectionCacheSize;
+	}
+
+	public int getMetricsMaxCollections() {
+		return metricsMaxCollections;
+	}
+
+	public void setMetricsMaxCollections(int metricsMaxCollections) {
+		this.metricsMaxCollections = metricsMaxCollections;
+	}
+
+	/**
+	 * The number of writes to accumulate and flush as a single bulk operation per collection
+	 */
+	@Min(1)
+	private int batchSize = 1;
+
+	/**
+	 * The approximate payload size in bytes that triggers a batch flush, 0 means no limit
+	 */
+	private long batchMaxBytes;
+
+	/**
+	 * The max time in milliseconds a write may be held in a batch before it is flushed
+	 */
+	private long batchTimeout = 1000;
+
+	/**
+	 * Whether the bulk operations of a batch are executed in order
+	 */
+	private boolean batchOrdered = true;
+
+	/**
+	 * Whether the writes of a batch are coalesced per 'queryfieldname' values, merging successive updates and dropping the writes followed by a delete
+	 */
+	private boolean batchCoalesce;
+
+	/**
+	 * The target max latency in milliseconds of the bulk writes, adapting the batch size and timeout up to 'batchSize' and 'batchTimeout', 0 means fixed
+	 */
+	@Min(0)
+	private long batchTargetLatency;
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getBatchMaxBytes() {
+		return batchMaxBytes;
+	}
+
+	public void setBatchMaxBytes(long batchMaxBytes) {
+		this.batchMaxBytes = batchMaxBytes;
+	}
+
+	public long getBatchTimeout() {
+		return batchTimeout;
+	}
+
+	public void setBatchTimeout(long batchTimeout) {
+		this.batchTimeout = batchTimeout;
+	}
+
+	public boolean isBatchCoalesce() {
+		return batchCoalesce;
+	}
+
+	public void setBatchCoalesce(boolean batchCoalesce) {
+		this.batchCoalesce = batchCoalesce;
+	}
+
+	public long getBatchTargetLatency() {
+		return batchTargetLatency;
+	}
+
+	public void setBatchTargetLatency(long batchTargetLatency) {
+		this.batchTargetLatency = batchTargetLatency;
+	}
+
+	public boolean isBatchOrdered() {
+		return batchOrdered;
+	}
+
+	public void setBatchOrdered(boolean batchOrdered) {
+		this.batchOrdered = batchOrdered;
+	}
+
+	/**
+	 * Whether inserts and updates are upserts filtered on the 'queryfieldname' for idempotent writes
+	 */
+	private boolean upsert;
+
+	public boolean isUpsert() {
+		return upsert;
+	}
+
+	public void setUpsert(boolean upsert) {
+		this.upsert = upsert;
+	}
+
+	/**
+	 * The number of workers writing concurrently, partitioned by the document key
+	 */
+	@Min(1)
+	private int workers = 1;
+
+	/**
+	 * The number of writes each worker may have pending before the consumer is blocked
+	 */
+	@Min(1)
+	private int workerQueueCapacity = 1000;
+
+	/**
+	 * The max time in milliseconds to wait for the pending writes of the workers on shutdown
+	 */
+	@Min(0)
+	private long workerShutdownTimeout = 30000;
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public int getWorkerQueueCapacity() {
+		return workerQueueCapacity;
+	}
+
+	public void setWorkerQueueCapacity(int workerQueueCapacity) {
+		this.workerQueueCapacity = workerQueueCapacity;
+	}
+
+	public long getWorkerShutdownTimeout() {
+		return workerShutdownTimeout;
+	}
+
+	public void setWorkerShutdownTimeout(long workerShutdownTimeout) {
+		this.workerShutdownTimeout = workerShutdownTimeout;
+	}
+
+	/**
+	 * Whether to write through the reactive driver with up to 'maxInFlight' concurrent writes
+	 */
+	private boolean reactive;
+
+	/**
+	 * The max number of concurrent writes in the reactive mode
+	 */
+	@Min(1)
+	private int maxInFlight = 256;
+
+	public boolean isReactive() {
+		return reactive;
+	}
+
+	public void setReactive(boolean reactive) {
+		this.reactive = reactive;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * The write concern of the writes, unless overridden for their operation type
+	 */
+	private WriteConcernProperties writeConcern = new WriteConcernProperties();
+
+	/**
+	 * The write concern of the inserts, overriding the unset attributes of 'writeConcern'
+	 */
+	private WriteConcernProperties insertWriteConcern = new WriteConcernProperties();
+
+	/**
+	 * The write concern of the updates, overriding the unset attributes of 'writeConcern'
+	 */
+	private WriteConcernProperties updateWriteConcern = new WriteConcernProperties();
+
+	/**
+	 * The write concern of the deletes, overriding the unset attributes of 'writeConcern'
+	 */
+	private WriteConcernProperties deleteWriteConcern = new WriteConcernProperties();
+
+	public WriteConcernProperties getWriteConcern() {
+		return writeConcern;
+	}
+
+	public WriteConcernProperties getInsertWriteConcern() {
+		return insertWriteConcern;
+	}
+
+	public WriteConcernProperties getUpdateWriteConcern() {
+		return updateWriteConcern;
+	}
+
+	public WriteConcernProperties getDeleteWriteConcern() {
+		return deleteWriteConcern;
+	}
+
+	/**
+	 * The max number of attempts of a write failing with a transient error, including the first one, and of flushes of a batched write failing without a dead letter destination
+	 */
+	@Min(1)
+	private int retryMaxAttempts = 3;
+
+	/**
+	 * The back off interval in milliseconds before the first retry of a write
+	 */
+	private long retryInitialInterval = 1000;
+
+	/**
+	 * The multiplier of the back off interval between the retries of a write
+	 */
+	private double retryMultiplier = 2.0;
+
+	/**
+	 * The max back off interval in milliseconds between the retries of a write
+	 */
+	private long retryMaxInterval = 10000;
+
+	/**
+	 * The destination to send the messages whose write failed permanently to, with the error type and code in headers
+	 */
+	private String deadLetterDestination;
+
+	public int getRetryMaxAttempts() {
+		return retryMaxAttempts;
+	}
+
+	public void setRetryMaxAttempts(int retryMaxAttempts) {
+		this.retryMaxAttempts = retryMaxAttempts;
+	}
+
+	public long getRetryInitialInterval() {
+		return retryInitialInterval;
+	}
+
+	public void setRetryInitialInterval(long retryInitialInterval) {
+		this.retryInitialInterval = retryInitialInterval;
+	}
+
+	public double getRetryMultiplier() {
+		return retryMultiplier;
+	}
+
+	public void setRetryMultiplier(double retryMultiplier) {
+		this.retryMultiplier = retryMultiplier;
+	}
+
+	public long getRetryMaxInterval() {
+		return retryMaxInterval;
+	}
+
+	public void setRetryMaxInterval(long retryMaxInterval) {
+		this.retryMaxInterval = retryMaxInterval;
+	}
+
+	public String getDeadLetterDestination() {
+		return deadLetterDestination;
+	}
+
+	public void setDeadLetterDestination(String deadLetterDestination) {
+		this.deadLetterDestination = deadLetterDestination;
+	}
+
+	/**
+	 * The connection pool settings of the MongoDB clients
+	 */
+	@Valid
+	private PoolProperties pool = new PoolProperties();
+
+	public PoolProperties getPool() {
+		return pool;
+	}
+
+	@AssertTrue(message = "One of 'collection', 'collectionExpression' or 'collectionHeader' is required")
 	private boolean isValid() {
-		return StringUtils.hasText(this.collection) || this.collectionExpression != null;
+		return StringUtils.hasText(this.collection) || this.collectionExpression != null
+				|| StringUtils.hasText(this.collectionHeader);
+	}
+
+	@AssertTrue(message = "The 'upsert' mode requires 'queryfieldname'")
+	private boolean isUpsertKeyed() {
+		return !this.upsert || StringUtils.hasText(this.queryfieldname);
+	}
+
+	@AssertTrue(message = "The 'batchCoalesce' mode requires 'queryfieldname'")
+	private boolean isBatchCoalesceKeyed() {
+		return !this.batchCoalesce || StringUtils.hasText(this.queryfieldname);
+	}
+
+	@AssertTrue(message = "The 'batchTargetLatency' requires a 'batchSize' greater than 1")
+	private boolean isBatchTargetLatencyBatched() {
+		return this.batchTargetLatency == 0 || this.batchSize > 1;
+	}
+
+	public static class WriteConcernProperties {
+
+		/**
+		 * The number of members to acknowledge the writes, 'majority' or a tag set name
+		 */
+		private String w;
+
+		/**
+		 * The max time in milliseconds to wait for the acknowledgement of the 'w' members
+		 */
+		private Long wtimeout;
+
+		/**
+		 * Whether the writes are acknowledged only once written to the journal
+		 */
+		private Boolean journal;
+
+		public String getW() {
+			return w;
+		}
+
+		public void setW(String w) {
+			this.w = w;
+		}
+
+		public Long getWtimeout() {
+			return wtimeout;
+		}
+
+		public void setWtimeout(Long wtimeout) {
+			this.wtimeout = wtimeout;
+		}
+
+		public Boolean getJournal() {
+			return journal;
+		}
+
+		public void setJournal(Boolean journal) {
+			this.journal = journal;
+		}
+
+		boolean isSet() {
+			return this.w != null || this.wtimeout != null || this.journal != null;
+		}
+
+	}
+
+	public static class PoolProperties {
+
+		/**
+		 * The max number of connections per server, e.g. at least the number of 'workers' or 'maxInFlight' writes
+		 */
+		@Min(1)
+		private Integer maxSize;
+
+		/**
+		 * The min number of connections per server kept open
+		 */
+		@Min(0)
+		private Integer minSize;
+
+		/**
+		 * The max time in milliseconds to wait for a connection of an exhausted pool
+		 */
+		private Long maxWaitTime;
+
+		/**
+		 * The max number of waiters for a connection of an exhausted pool, as a multiple of 'maxSize'
+		 */
+		@Min(1)
+		private Integer waitQueueMultiple;
+
+		/**
+		 * The max time in milliseconds a connection may stay idle before it is closed
+		 */
+		private Long maxConnectionIdleTime;
+
+		/**
+		 * The max time in milliseconds a connection may live before it is closed
+		 */
+		private Long maxConnectionLifeTime;
+
+		public Integer getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(Integer maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public Integer getMinSize() {
+			return minSize;
+		}
+
+		public void setMinSize(Integer minSize) {
+			this.minSize = minSize;
+		}
+
+		public Long getMaxWaitTime() {
+			return maxWaitTime;
+		}
+
+		public void setMaxWaitTime(Long maxWaitTime) {
+			this.maxWaitTime = maxWaitTime;
+		}
+
+		public Integer getWaitQueueMultiple() {
+			return waitQueueMultiple;
+		}
+
+		public void setWaitQueueMultiple(Integer waitQueueMultiple) {
+			this.waitQueueMultiple = waitQueueMultiple;
+		}
+
+		public Long getMaxConnectionIdleTime() {
+			return maxConnectionIdleTime;
+		}
+
+		public void setMaxConnectionIdleTime(Long maxConnectionIdleTime) {
+			this.maxConnectionIdleTime = maxConnectionIdleTime;
+		}
+
+		public Long getMaxConnectionLifeTime() {
+			return maxConnectionLifeTime;
+		}
+
+		public void setMaxConnectionLifeTime(Long maxConnectionLifeTime) {
+			this.maxConnectionLifeTime = maxConnectionLifeTime;
+		}
+
 	}
 
 }
@@ -16,49 +16,192 @@
 
 package org.springframework.cloud.stream.app.mongodb.sink;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.bulk.DeleteRequest;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
 import com.mongodb.util.JSON;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.kafka.common.TopicPartition;
 import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.stream.app.mongodb.sink.WriteFailureHandler.UnappliedWritesException;
+import org.springframework.dao.DataAccessException;
 import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoExceptionTranslator;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.expression.Expression;
 import org.springframework.expression.common.LiteralExpression;
 import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.integration.expression.ExpressionUtils;
 import org.springframework.integration.handler.AbstractMessageHandler;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandlingException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Implementation of {@link org.springframework.messaging.MessageHandler}
  * which writes Message payload into a MongoDb collection
  * identified by evaluation of the {@link #collectionNameExpression}.
+ * <p>
+ * When a {@link #setCollectionHeader(String) collection header} is configured and present,
+ * its value is used as is, without any expression evaluation. SpEL collection name expressions
+ * are compiled after their first evaluation, and literal collection names are not evaluated at all.
+ * <p>
+ * {@code String}, {@link Document} and {@link RawBsonDocument} payloads are written straight through
+ * the driver as {@link RawBsonDocument}s, bypassing the {@link MongoConverter}. The driver collection
+ * handles of all the writes, inserts, upsert mode replaces, updates, deletes and bulk writes, are kept
+ * per collection name in a {@link #setCollectionCacheSize(int) bounded cache}.
+ * <p>
+ * When the {@link #setBatchSize(int) batchSize} is greater than one, the writes are
+ * accumulated and flushed as a single driver bulk write per collection
+ * as soon as the batch size, the {@link #setBatchMaxBytes(long) batchMaxBytes} or the
+ * {@link #setBatchTimeout(long) batchTimeout} is reached, whichever comes first.
+ * With {@link #setBatchCoalesce(boolean) batchCoalesce}, the writes for the same key values
+ * are coalesced in the batch: successive updates are merged into a single {@code $set} and
+ * the inserts and updates followed by a delete are dropped.
+ * With a {@link #setBatchTargetLatency(long) batchTargetLatency}, the batch size and timeout are
+ * adapted to the observed bulk write latency, see {@link AdaptiveBatchSizer}.
+ * <p>
+ * The {@link #setUniqueFieldName(String) unique field names} are compiled once into a
+ * {@link WritePlan} on initialization, so update and delete messages only fill the key
+ * values into the pre-built filter and {@code $set} documents.
+ * <p>
+ * When the {@link #setWorkers(int) workers} are more than one, the writes are handed over
+ * to a pool of single-threaded workers, partitioned by the hash of the key fields
+ * (or the {@code _id} when no key fields are configured), so writes for the same document
+ * keep their order while writes for different documents run concurrently. A write failing on
+ * a worker, and not dead-lettered, stops that worker: its queued writes are dropped without being
+ * acknowledged, and the following messages of its partition are rejected, so no later write for the
+ * same keys overtakes the failed one.
+ * <p>
+ * In the {@link #setUpsert(boolean) upsert} mode, inserts replace and updates modify the
+ * document matching the key fields, creating it when it does not exist, so that
+ * replaying the same messages is idempotent.
+ * <p>
+ * The {@link #setWriteConcern(WriteConcern) write concern} can be set for the whole sink and
+ * {@link #setWriteConcern(OperationType, WriteConcern) overridden per operation type}, e.g. to write
+ * high volume inserts unjournaled with {@code w:1} while deletes wait for a {@code majority}.
+ * The write concerns are applied to the collection handles of the writes, so the {@link MongoTemplate}
+ * the sink is constructed with, possibly shared with other components, is left untouched.
+ * <p>
+ * A {@link List} payload, e.g. the records of a consumer poll, is written as a single bulk operation
+ * into the collection of the message, on the calling thread, regardless of the batching and workers
+ * configuration. The {@code op_type} of each element is taken from its entry of the
+ * {@link KafkaHeaders#BATCH_CONVERTED_HEADERS}, or from an {@code op_type} header holding a list,
+ * or else from the {@code op_type} header of the message.
+ * <p>
+ * Messages consumed from Kafka with {@code autoCommitOffset=false} are acknowledged once their
+ * write has succeeded or their message has been dead-lettered, whether written on the calling thread,
+ * by a worker or in a bulk operation, see {@link WriteAcknowledger}. The record of a write whose
+ * failure is rethrown to the caller is evicted, so it no longer holds back the following records
+ * of its partition, while the one of a write failed on a worker holds them back until a restart.
+ * The pending records of the {@link #partitionsRevoked(Collection) revoked partitions} are forgotten.
+ * <p>
+ * The writes failing with a transient error are {@link #setRetryMaxAttempts(int) retried} with an
+ * exponential back off. The messages of the writes which still fail are sent to the
+ * {@link #setDeadLetterChannel(MessageChannel) dead letter channel}, if any, with the classified
+ * failure in headers, see {@link WriteFailureHandler}. Only the failed writes of a bulk operation
+ * are retried or dead-lettered.
+ * <p>
+ * The writes are timed and counted in the {@link #setMeterRegistry(MeterRegistry) meter registry},
+ * see {@link MongoDbSinkMetrics}.
  *
  * @author Hitesh Panchal
  *
  */
-public class MongoDbStoringMessageHandler extends AbstractMessageHandler {
+public class MongoDbStoringMessageHandler extends AbstractMessageHandler implements DisposableBean {
 
 	public static String UNIQUE_FIELD_NAME = "unique_field_name";
 	public static String UNIQUE_FIELD_VALUE = "unique_field_value";
 	public static String OPERATION_TYPE = "op_type";
 
+	/**
+	 * The header of a dead-lettered message holding the failure type:
+	 * {@code duplicate-key}, {@code validation}, {@code transient} or {@code permanent}.
+	 */
+	public static final String ERROR_TYPE = "mongodb_error_type";
+
+	/**
+	 * The header of a dead-lettered message holding the MongoDB error code, when there is one.
+	 */
+	public static final String ERROR_CODE = "mongodb_error_code";
+
+	/**
+	 * The header of a dead-lettered message holding the error message.
+	 */
+	public static final String ERROR_MESSAGE = "mongodb_error_message";
+
+	static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+	private static final JsonBytesToBsonEncoder JSON_ENCODER = new JsonBytesToBsonEncoder();
+
+	private static final MongoExceptionTranslator EXCEPTION_TRANSLATOR = new MongoExceptionTranslator();
+
+	private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+
+	private static final UpdateOptions UPDATE_UPSERT = new UpdateOptions().upsert(true);
+
 	Logger Logger = LoggerFactory.getLogger(MongoDbStoringMessageHandler.class);
 
 	private volatile MongoOperations mongoTemplate;
 
+
 	private volatile MongoDbFactory mongoDbFactory;
 
 	private volatile MongoConverter mongoConverter;
@@ -67,8 +210,82 @@ public class MongoDbStoringMessageHandler extends AbstractMessageHandler {
 
 	private volatile Expression collectionNameExpression = new LiteralExpression("data");
 
+	private volatile String collectionHeader;
+
+	private volatile int collectionCacheSize = 100;
+
+	private volatile CollectionNameResolver collectionNameResolver;
+
+	private volatile Map<String, MongoCollection<RawBsonDocument>> collections;
+
 	private volatile String uniqueFieldName;
 
+	private volatile WritePlan writePlan;
+
+	private volatile int batchSize = 1;
+
+	private volatile long batchMaxBytes;
+
+	private volatile long batchTimeout = 1000;
+
+	private volatile boolean batchOrdered = true;
+
+	private volatile boolean batchCoalesce;
+
+	private volatile long batchTargetLatency;
+
+	private volatile AdaptiveBatchSizer batchSizer;
+
+	private volatile boolean upsert;
+
+	private volatile int workers = 1;
+
+	private volatile int workerQueueCapacity = 1000;
+
+	private volatile long workerShutdownTimeout = 30000;
+
+	private ThreadPoolExecutor[] workerExecutors;
+
+	private AtomicReferenceArray<Throwable> workerFailures;
+
+	private final AtomicInteger unkeyedPartition = new AtomicInteger();
+
+	private final WriteAcknowledger acknowledger = new WriteAcknowledger();
+
+	private volatile WriteConcern writeConcern;
+
+	private final Map<OperationType, WriteConcern> writeConcerns = new EnumMap<>(OperationType.class);
+
+	private volatile int retryMaxAttempts = 3;
+
+	private volatile long retryInitialInterval = 1000;
+
+	private volatile double retryMultiplier = 2.0;
+
+	private volatile long retryMaxInterval = 10000;
+
+	private volatile MessageChannel deadLetterChannel;
+
+	private volatile WriteFailureHandler failureHandler;
+
+	private volatile MongoDbSinkMetrics metrics = new MongoDbSinkMetrics(Metrics.globalRegistry);
+
+	private volatile int metricsMaxCollections = MongoDbSinkMetrics.DEFAULT_MAX_COLLECTIONS;
+
+	private final Object batchMonitor = new Object();
+
+	private final Object flushMonitor = new Object();
+
+	private final Map<String, List<PendingWrite>> batch = new LinkedHashMap<>();
+
+	private final Map<String, Map<BsonDocument, Integer>> batchKeys = new HashMap<>();
+
+	private int batchCount;
+
+	private long batchBytes;
+
+	private ScheduledFuture<?> batchTimeoutTask;
+
 	private volatile boolean initialized = false;
 	
 	/**
@@ -140,6 +357,241 @@ public class MongoDbStoringMessageHandler extends AbstractMessageHandler {
 		this.collectionNameExpression = collectionNameExpression;
 	}
 
+	/**
+	 * Sets the message header which, when present, holds the collection name.
+	 * Falls back to the collection name expression when the header is missing.
+	 *
+	 * @param collectionHeader The collection header name.
+	 */
+	public void setCollectionHeader(String collectionHeader) {
+		this.collectionHeader = collectionHeader;
+	}
+
+	/**
+	 * The max number of collection handles kept for the writes, single or bulk, going straight
+	 * through the driver; the least recently used ones are evicted first. Defaults to {@code 100}.
+	 *
+	 * @param collectionCacheSize the collection cache size.
+	 */
+	public void setCollectionCacheSize(int collectionCacheSize) {
+		Assert.isTrue(collectionCacheSize > 0, "'collectionCacheSize' must be greater than 0");
+		this.collectionCacheSize = collectionCacheSize;
+	}
+
+	/**
+	 * The number of writes to accumulate before they are flushed as a single bulk operation.
+	 * A value of {@code 1} (default) writes every message individually.
+	 *
+	 * @param batchSize the batch size.
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "'batchSize' must be greater than 0");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * The approximate amount of payload bytes to accumulate before the batch is flushed.
+	 * Only {@code String}, {@code byte[]} and {@link RawBsonDocument} payloads contribute to this size.
+	 * A value of {@code 0} (default) means no limit.
+	 *
+	 * @param batchMaxBytes the max batch size in bytes.
+	 */
+	public void setBatchMaxBytes(long batchMaxBytes) {
+		Assert.isTrue(batchMaxBytes >= 0, "'batchMaxBytes' must not be negative");
+		this.batchMaxBytes = batchMaxBytes;
+	}
+
+	/**
+	 * The max time in milliseconds a write may wait in the batch before it is flushed.
+	 * Defaults to {@code 1000}.
+	 *
+	 * @param batchTimeout the batch timeout.
+	 */
+	public void setBatchTimeout(long batchTimeout) {
+		Assert.isTrue(batchTimeout > 0, "'batchTimeout' must be greater than 0");
+		this.batchTimeout = batchTimeout;
+	}
+
+	/**
+	 * Whether the bulk operations are executed in order, stopping on the first error,
+	 * or unordered. Defaults to {@code true}.
+	 *
+	 * @param batchOrdered the ordered flag.
+	 */
+	public void setBatchOrdered(boolean batchOrdered) {
+		this.batchOrdered = batchOrdered;
+	}
+
+	/**
+	 * Whether the writes for the same key values are coalesced in the batch: an update following
+	 * an update is merged into its {@code $set}, and an insert or update followed by a delete is
+	 * dropped. Requires the {@link #setUniqueFieldName(String) unique field names}.
+	 * Defaults to {@code false}.
+	 *
+	 * @param batchCoalesce the coalesce flag.
+	 */
+	public void setBatchCoalesce(boolean batchCoalesce) {
+		this.batchCoalesce = batchCoalesce;
+	}
+
+	/**
+	 * The target max latency in milliseconds of the bulk writes. When set, the batch size and
+	 * timeout are adapted between {@code 1} and the {@link #setBatchSize(int) batchSize} and
+	 * {@link #setBatchTimeout(long) batchTimeout}, shrinking when the bulk writes are slower than
+	 * the target and growing back under a backlog. A value of {@code 0} (default) keeps them fixed.
+	 *
+	 * @param batchTargetLatency the target bulk write latency.
+	 */
+	public void setBatchTargetLatency(long batchTargetLatency) {
+		Assert.isTrue(batchTargetLatency >= 0, "'batchTargetLatency' must not be negative");
+		this.batchTargetLatency = batchTargetLatency;
+	}
+
+	/**
+	 * Whether inserts and updates are upserts filtered on the key fields: an insert replaces
+	 * the matching document and an update modifies a single one, both creating the document
+	 * when it does not exist. Requires the {@link #setUniqueFieldName(String) unique field names}.
+	 * In the batch mode too, inserts replace the matching document, with an upserting {@link ReplaceOneModel}.
+	 *
+	 * @param upsert the upsert flag.
+	 */
+	public void setUpsert(boolean upsert) {
+		this.upsert = upsert;
+	}
+
+	/**
+	 * The number of workers writing concurrently. A value of {@code 1} (default) writes
+	 * on the calling thread.
+	 *
+	 * @param workers the number of workers.
+	 */
+	public void setWorkers(int workers) {
+		Assert.isTrue(workers > 0, "'workers' must be greater than 0");
+		this.workers = workers;
+	}
+
+	/**
+	 * The number of writes each worker may have pending before the calling thread
+	 * is blocked. Defaults to {@code 1000}.
+	 *
+	 * @param workerQueueCapacity the queue capacity per worker.
+	 */
+	public void setWorkerQueueCapacity(int workerQueueCapacity) {
+		Assert.isTrue(workerQueueCapacity > 0, "'workerQueueCapacity' must be greater than 0");
+		this.workerQueueCapacity = workerQueueCapacity;
+	}
+
+	/**
+	 * The max time in milliseconds to wait for the pending writes of the workers on shutdown.
+	 * Defaults to {@code 30000}.
+	 *
+	 * @param workerShutdownTimeout the shutdown timeout.
+	 */
+	public void setWorkerShutdownTimeout(long workerShutdownTimeout) {
+		Assert.isTrue(workerShutdownTimeout >= 0, "'workerShutdownTimeout' must not be negative");
+		this.workerShutdownTimeout = workerShutdownTimeout;
+	}
+
+	/**
+	 * The {@link WriteConcern} of the writes, unless overridden for their operation type.
+	 * The bulk operations of the batch mode and of the {@link List} payloads, which mix the
+	 * operation types, always use this one. Defaults to the write concern of the database.
+	 *
+	 * @param writeConcern the write concern.
+	 */
+	public void setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+	}
+
+	/**
+	 * The {@link WriteConcern} of the writes of the provided operation type,
+	 * overriding the {@link #setWriteConcern(WriteConcern) sink write concern}.
+	 *
+	 * @param operationType the operation type.
+	 * @param writeConcern the write concern.
+	 */
+	public void setWriteConcern(OperationType operationType, WriteConcern writeConcern) {
+		Assert.notNull(operationType, "'operationType' must not be null");
+		Assert.notNull(writeConcern, "'writeConcern' must not be null");
+		this.writeConcerns.put(operationType, writeConcern);
+	}
+
+	/**
+	 * The max number of attempts of a write failing with a transient error, e.g. a network
+	 * error or a replica set election, including the first one. Defaults to {@code 3}.
+	 * Without a dead letter channel, it is also the max number of flushes of a batched write
+	 * which keeps failing, see {@link #flush()}.
+	 *
+	 * @param retryMaxAttempts the max number of attempts.
+	 */
+	public void setRetryMaxAttempts(int retryMaxAttempts) {
+		Assert.isTrue(retryMaxAttempts > 0, "'retryMaxAttempts' must be greater than 0");
+		this.retryMaxAttempts = retryMaxAttempts;
+	}
+
+	/**
+	 * The back off interval in milliseconds before the first retry. Defaults to {@code 1000}.
+	 *
+	 * @param retryInitialInterval the initial back off interval.
+	 */
+	public void setRetryInitialInterval(long retryInitialInterval) {
+		this.retryInitialInterval = retryInitialInterval;
+	}
+
+	/**
+	 * The multiplier of the back off interval between retries. Defaults to {@code 2.0}.
+	 *
+	 * @param retryMultiplier the back off multiplier.
+	 */
+	public void setRetryMultiplier(double retryMultiplier) {
+		this.retryMultiplier = retryMultiplier;
+	}
+
+	/**
+	 * The max back off interval in milliseconds between retries. Defaults to {@code 10000}.
+	 *
+	 * @param retryMaxInterval the max back off interval.
+	 */
+	public void setRetryMaxInterval(long retryMaxInterval) {
+		this.retryMaxInterval = retryMaxInterval;
+	}
+
+	/**
+	 * The channel to send the messages whose write failed permanently to, with the
+	 * {@link #ERROR_TYPE}, {@link #ERROR_CODE} and {@link #ERROR_MESSAGE} headers. The failed
+	 * writes of a bulk operation are sent one by one. Without a dead letter channel (default),
+	 * the failures are thrown to the caller.
+	 *
+	 * @param deadLetterChannel the dead letter channel.
+	 */
+	public void setDeadLetterChannel(MessageChannel deadLetterChannel) {
+		this.deadLetterChannel = deadLetterChannel;
+	}
+
+	/**
+	 * The {@link MeterRegistry} to record the write metrics in.
+	 * Defaults to the Micrometer global registry.
+	 *
+	 * @param meterRegistry the meter registry.
+	 */
+	public void setMeterRegistry(MeterRegistry meterRegistry) {
+		MongoDbSinkMetrics metrics = new MongoDbSinkMetrics(meterRegistry);
+		metrics.setMaxCollections(this.metricsMaxCollections);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the max number of collections tagged on the write metrics, the writes to the others
+	 * being tagged {@value MongoDbSinkMetrics#OTHER_COLLECTION}.
+	 * Defaults to {@value MongoDbSinkMetrics#DEFAULT_MAX_COLLECTIONS}.
+	 *
+	 * @param metricsMaxCollections the max number of collections.
+	 */
+	public void setMetricsMaxCollections(int metricsMaxCollections) {
+		this.metrics.setMaxCollections(metricsMaxCollections);
+		this.metricsMaxCollections = metricsMaxCollections;
+	}
+
 	@Override
 	public String getComponentType() {
 		return "mongo:outbound-channel-adapter";
@@ -152,72 +604,938 @@ public class MongoDbStoringMessageHandler extends AbstractMessageHandler {
 		if (this.mongoTemplate == null) {
 			this.mongoTemplate = new MongoTemplate(this.mongoDbFactory, this.mongoConverter);
 		}
+		if (this.batchSize > 1) {
+			Assert.notNull(getTaskScheduler(), "A 'taskScheduler' is required for the batch mode");
+		}
+		if (this.batchTargetLatency > 0) {
+			Assert.isTrue(this.batchSize > 1, "The 'batchTargetLatency' requires a 'batchSize' greater than 1");
+			this.batchSizer = new AdaptiveBatchSizer(this.batchTargetLatency, this.batchSize, this.batchTimeout);
+			this.metrics.registerBatchLimit(this.batchSizer);
+		}
+		this.collectionNameResolver = new CollectionNameResolver(this.collectionNameExpression,
+				this.collectionHeader, this.evaluationContext);
+		this.collections = collectionCache(this.collectionCacheSize);
+		this.writePlan = WritePlan.of(this.uniqueFieldName);
+		this.failureHandler = new WriteFailureHandler(this.retryMaxAttempts, this.retryInitialInterval,
+				this.retryMultiplier, this.retryMaxInterval, this.deadLetterChannel);
+		Assert.isTrue(!this.upsert || StringUtils.hasText(this.uniqueFieldName),
+				"The 'uniqueFieldName' is required for the upsert mode");
+		Assert.isTrue(!this.batchCoalesce || StringUtils.hasText(this.uniqueFieldName),
+				"The 'uniqueFieldName' is required for the batch coalescing");
+		if (this.workers > 1) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("mongodb-sink-worker-");
+			this.workerExecutors = new ThreadPoolExecutor[this.workers];
+			this.workerFailures = new AtomicReferenceArray<>(this.workers);
+			for (int i = 0; i < this.workers; i++) {
+				this.workerExecutors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<>(this.workerQueueCapacity), threadFactory,
+						MongoDbStoringMessageHandler::blockUntilQueued);
+			}
+		}
+		Logger.info("Properties: uniqueFieldName: {}", this.uniqueFieldName);
 		this.initialized = true;
 	}
 
 	@Override
 	protected void handleMessageInternal(Message<?> message) throws Exception {
 		Assert.isTrue(this.initialized, "This class is not yet initialized. Invoke its afterPropertiesSet() method");
-		String collectionName = this.collectionNameExpression.getValue(this.evaluationContext, message, String.class);
-		Assert.notNull(collectionName, "'collectionNameExpression' must not evaluate to null");
-		Logger.info("Properties: uniqueFieldName: {}",uniqueFieldName);
-		if(message.getHeaders().containsKey("op_type")){
-			Object payload = message.getPayload();
-			Logger.debug("Payload instance of {}",payload.getClass().getName());
+		String collectionName = this.collectionNameResolver.resolve(message);
+		Object payload = message.getPayload();
+		OperationType operationType = OperationType.of(message.getHeaders().get(OPERATION_TYPE));
+		Runnable acknowledgment = this.acknowledger.register(message);
+		try {
+			if (payload instanceof List) {
+				writeAll(collectionName, message, (List<?>) payload, acknowledgment);
+			}
+			else if (this.workerExecutors != null) {
+				Object document;
+				try {
+					document = toKeyedDocument(payload);
+				}
+				catch (RuntimeException e) {
+					this.failureHandler.deadLetter(message, e);
+					acknowledgment.run();
+					return;
+				}
+				int worker = partitionOf(document);
+				Throwable workerFailure = this.workerFailures.get(worker);
+				if (workerFailure != null) {
+					throw new MessageHandlingException(message,
+							"The sink worker " + worker + " is stopped by a failed write", workerFailure);
+				}
+				this.workerExecutors[worker].execute(() ->
+						writeInWorker(worker, collectionName, operationType, document, message, acknowledgment));
+			}
+			else {
+				write(collectionName, operationType, payload, message, acknowledgment);
+			}
+		}
+		catch (Exception e) {
+			// the record is left to the binder error handling, it no longer holds back the following ones
+			this.acknowledger.evict(message);
+			throw e;
+		}
+	}
+
+	/**
+	 * Forget the pending records of the revoked Kafka partitions: the writes still in progress
+	 * for them are no longer acknowledged, their records being consumed again by the next owner
+	 * of the partitions.
+	 * @param partitions the revoked partitions.
+	 */
+	public void partitionsRevoked(Collection<TopicPartition> partitions) {
+		this.acknowledger.revoke(partitions);
+	}
+
+	/**
+	 * @return the write concern of the operation type, or {@code null} for the default one.
+	 */
+	private WriteConcern writeConcernOf(OperationType operationType) {
+		return this.writeConcerns.getOrDefault(operationType, this.writeConcern);
+	}
+
+	/**
+	 * Write the payload, or add it to the batch, running the acknowledgment once the write
+	 * has succeeded or its message has been dead-lettered.
+	 */
+	private void write(String collectionName, OperationType operationType, Object payload, Message<?> message,
+			Runnable acknowledgment) {
+
+		if (this.batchSize > 1) {
+			addToBatch(collectionName, operationType, payload, message, acknowledgment);
+			return;
+		}
+		this.failureHandler.execute(message, () -> doWrite(collectionName, operationType, payload));
+		acknowledgment.run();
+	}
+
+	private void doWrite(String collectionName, OperationType operationType, Object payload) {
+		Logger.debug("Payload instance of {}",payload.getClass().getName());
+		long start = this.metrics.start();
+		try {
 			//perform operation based on the operation type
-			switch(message.getHeaders().get("op_type").toString()){
-				//update operations
-				case "Insert":
-				case "insert":
-				case "INSERT":
-				case "I":
-				case "i":
-					this.mongoTemplate.save(payload, collectionName);
-					break;
+			switch (operationType) {
 				//update operations
+				case UPDATE:
+					RawBsonDocument updated = toRawBson(payload);
+					BsonDocument updateFilter = this.writePlan.keyFilter(updated);
+					Logger.debug("Updated records filter: {}",updateFilter);
+					BsonDocument update = this.writePlan.update(updated);
+					UpdateResult result = executeInCollection(collectionName, OperationType.UPDATE,
+							collection -> this.upsert
+									? collection.updateOne(updateFilter, update, UPDATE_UPSERT)
+									: collection.updateMany(updateFilter, update));
+					this.metrics.recordUpdate(collectionName, start, result);
+					Logger.info("Updated records counts: {}",result);
+				break;
+				//Delete Operation
+				case DELETE:
+					BsonDocument deleteFilter = this.writePlan.keyFilter(toRawBson(payload));
+					Logger.info("Delete object filter {}",deleteFilter);
+					DeleteResult resultd = executeInCollection(collectionName, OperationType.DELETE,
+							collection -> collection.deleteMany(deleteFilter));
+					this.metrics.recordDelete(collectionName, start, resultd);
+					Logger.info("Delete records counts: {}",resultd);
+				break;
+				default:
+					if (this.upsert) {
+						this.metrics.recordReplace(collectionName, start, replaceDocument(payload, collectionName));
+						break;
+					}
+					RawBsonDocument document = toRawDocument(payload);
+					if (document != null) {
+						saveRawDocument(document, collectionName);
+					}
+					else {
+						saveDocument(payload, collectionName);
+					}
+					this.metrics.recordInsert(collectionName, start);
+				break;
+			}
+		}
+		catch (RuntimeException e) {
+			this.metrics.recordFailure(collectionName, operationType, this.upsert, start, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Write the elements of a {@link List} payload as a single bulk operation, with the sink write concern.
+	 */
+	private void writeAll(String collectionName, Message<?> message, List<?> payloads, Runnable acknowledgment) {
+		List<WriteModel<RawBsonDocument>> writes = new ArrayList<>(payloads.size());
+		List<Integer> indexes = new ArrayList<>(payloads.size());
+		for (int i = 0; i < payloads.size(); i++) {
+			try {
+				writes.add(this.writePlan.writeModel(OperationType.of(message, i), toRawBson(payloads.get(i)),
+						this.upsert));
+				indexes.add(i);
+			}
+			catch (RuntimeException e) {
+				writes.add(null);
+				this.failureHandler.deadLetter(elementMessage(message, payloads.get(i)), e);
+			}
+		}
+		this.failureHandler.executeBulk(indexes,
+				pending -> bulkWrite(collectionName,
+						pending.stream().map(writes::get).collect(Collectors.toList())),
+				this.batchOrdered,
+				index -> Collections.singletonList(elementMessage(message, payloads.get(index))));
+		acknowledgment.run();
+	}
+
+	private void bulkWrite(String collectionName, List<WriteModel<RawBsonDocument>> writes) {
+		MongoCollection<RawBsonDocument> collection = bulkCollection(collectionName);
+		long start = this.metrics.start();
+		try {
+			BulkWriteResult result = collection.bulkWrite(writes, new BulkWriteOptions().ordered(this.batchOrdered));
+			this.metrics.recordBulk(collectionName, start, writes.size(), result);
+		}
+		catch (RuntimeException e) {
+			this.metrics.recordBulkFailure(collectionName, start, writes.size(), e);
+			throw translate(e);
+		}
+	}
+
+	/**
+	 * Build the message of an element of a {@link List} payload, e.g. to dead-letter it.
+	 */
+	static Message<?> elementMessage(Message<?> message, Object element) {
+		return MessageBuilder.withPayload(element)
+				.copyHeaders(message.getHeaders())
+				.build();
+	}
+
+	/**
+	 * Flush the writes accumulated in the batch, if any.
+	 * Writes for the same collection are executed as a single bulk operation.
+	 * A failed bulk operation does not prevent the ones of the other collections.
+	 * Without a dead letter channel, the writes it did not apply, i.e. the failed ones and the ones
+	 * an ordered bulk operation did not execute, are not acknowledged: they are put back in the batch
+	 * and retried with the next flush, up to {@link #setRetryMaxAttempts(int) retryMaxAttempts}
+	 * flushes, then given up and logged. The failure is not rethrown: the message whose write
+	 * triggered the flush has nothing to do with it.
+	 */
+	public void flush() {
+		synchronized (this.flushMonitor) {
+			Map<String, List<PendingWrite>> writes;
+			synchronized (this.batchMonitor) {
+				if (this.batchCount == 0) {
+					return;
+				}
+				writes = new LinkedHashMap<>(this.batch);
+				this.batch.clear();
+				this.batchKeys.clear();
+				this.batchCount = 0;
+				this.batchBytes = 0;
+				if (this.batchTimeoutTask != null) {
+					this.batchTimeoutTask.cancel(false);
+					this.batchTimeoutTask = null;
+				}
+			}
+			for (Map.Entry<String, List<PendingWrite>> entry : writes.entrySet()) {
+				// the writes dropped by the coalescing
+				entry.getValue().removeIf(Objects::isNull);
+				List<PendingWrite> failed = Collections.emptyList();
+				List<PendingWrite> unexecuted = Collections.emptyList();
+				RuntimeException failure = null;
+				try {
+					this.failureHandler.executeBulk(entry.getValue(),
+							pending -> flushWrites(entry.getKey(), pending), this.batchOrdered,
+							write -> write.messages);
+				}
+				catch (UnappliedWritesException e) {
+					failed = e.getFailed();
+					unexecuted = e.getUnexecuted();
+					failure = e;
+				}
+				catch (RuntimeException e) {
+					// e.g. a failure to dead-letter: which writes were applied is unknown
+					failed = entry.getValue();
+					failure = e;
+				}
+				Set<PendingWrite> unapplied = new HashSet<>(failed);
+				unapplied.addAll(unexecuted);
+				for (PendingWrite write : entry.getValue()) {
+					if (!unapplied.contains(write)) {
+						write.acknowledgment.run();
+					}
+				}
+				if (failure != null) {
+					retryOrGiveUp(entry.getKey(), failed, unexecuted, failure);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Requeue the writes a bulk operation did not apply, unless they have failed with
+	 * {@link #setRetryMaxAttempts(int) retryMaxAttempts} flushes already: they are then
+	 * handed over to the failure handler, and acknowledged once dead-lettered or logged.
+	 * The writes an ordered bulk operation did not execute are requeued as they are.
+	 */
+	private void retryOrGiveUp(String collectionName, List<PendingWrite> failed, List<PendingWrite> unexecuted,
+			RuntimeException failure) {
+
+		List<PendingWrite> retries = new ArrayList<>(failed.size() + unexecuted.size());
+		for (PendingWrite write : failed) {
+			if (++write.flushes < this.retryMaxAttempts) {
+				retries.add(write);
+				continue;
+			}
+			for (Message<?> message : write.messages) {
+				try {
+					this.failureHandler.deadLetter(message, failure);
+				}
+				catch (RuntimeException e) {
+					Logger.error("Giving up a write into the '" + collectionName + "' collection after "
+							+ write.flushes + " flushes", e);
+				}
+			}
+			write.acknowledgment.run();
+		}
+		retries.addAll(unexecuted);
+		if (!retries.isEmpty()) {
+			Logger.warn("{} writes into the '{}' collection were not applied, they are retried with the next flush: {}",
+					retries.size(), collectionName, failure.getMessage());
+			requeue(collectionName, retries);
+		}
+	}
+
+	/**
+	 * Write the batched writes of a collection as a driver bulk write, with the sink write concern.
+	 * The {@code BulkOperations} of the template have no replace, needed for the {@code save()} semantics
+	 * of the documents carrying an {@code _id}.
+	 */
+	private void flushWrites(String collectionName, List<PendingWrite> writes) {
+		List<WriteModel<RawBsonDocument>> models = new ArrayList<>(writes.size());
+		for (PendingWrite write : writes) {
+			models.add(write.writeModel());
+		}
+		MongoCollection<RawBsonDocument> collection = bulkCollection(collectionName);
+		long start = this.metrics.start();
+		long nanoStart = System.nanoTime();
+		BulkWriteResult result;
+		try {
+			result = collection.bulkWrite(models, new BulkWriteOptions().ordered(this.batchOrdered));
+		}
+		catch (RuntimeException e) {
+			this.metrics.recordBulkFailure(collectionName, start, writes.size(), e);
+			throw translate(e);
+		}
+		finally {
+			if (this.batchSizer != null) {
+				this.batchSizer.record(System.nanoTime() - nanoStart, writes.size());
+			}
+		}
+		this.metrics.recordBulk(collectionName, start, writes.size(), result);
+		// the counts of an unacknowledged write are not available
+		if (result.wasAcknowledged()) {
+			Logger.debug("Bulk write into {}: inserted {}, modified {}, deleted {}", collectionName,
+					result.getInsertedCount(), result.getModifiedCount(), result.getDeletedCount());
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (this.workerExecutors != null) {
+			for (ThreadPoolExecutor executor : this.workerExecutors) {
+				executor.shutdown();
+			}
+			long deadline = System.currentTimeMillis() + this.workerShutdownTimeout;
+			try {
+				for (ThreadPoolExecutor executor : this.workerExecutors) {
+					if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+							TimeUnit.MILLISECONDS)) {
+						Logger.warn("Pending writes were not completed within {}ms", this.workerShutdownTimeout);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Parse or convert the payload into a document, whose key fields partition the writes.
+	 * The payloads other than the BSON documents, e.g. a {@link Map}, are converted by the
+	 * {@link MongoConverter} of the template, as they are for their write.
+	 */
+	private Object toKeyedDocument(Object payload) {
+		if (payload instanceof Document || payload instanceof RawBsonDocument) {
+			return payload;
+		}
+		RawBsonDocument document = toRawDocument(payload);
+		return document != null ? document : toDocument(payload);
+	}
+
+	private int partitionOf(Object document) {
+		Integer keyHash = this.writePlan.keyHash(document);
+		int hash = keyHash != null ? keyHash : this.unkeyedPartition.getAndIncrement();
+		return Math.floorMod(hash, this.workerExecutors.length);
+	}
+
+	/**
+	 * Write the payload on the worker, unless a previous write of the worker failed:
+	 * the writes queued behind it are then neither executed nor acknowledged.
+	 */
+	private void writeInWorker(int worker, String collectionName, OperationType operationType, Object payload,
+			Message<?> message, Runnable acknowledgment) {
+
+		if (this.workerFailures.get(worker) != null) {
+			Logger.debug("Dropping a write into the '{}' collection queued on the stopped worker {}",
+					collectionName, worker);
+			return;
+		}
+		try {
+			write(collectionName, operationType, payload, message, acknowledgment);
+		}
+		catch (Exception e) {
+			this.workerFailures.compareAndSet(worker, null, e);
+			Logger.error("Failed to write into the '" + collectionName + "' collection, the worker " + worker
+					+ " is stopped", e);
+		}
+	}
+
+	private static void blockUntilQueued(Runnable task, ThreadPoolExecutor executor) {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("The sink workers have been shut down");
+		}
+		try {
+			executor.getQueue().put(task);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for a sink worker", e);
+		}
+	}
+
+	private void addToBatch(String collectionName, OperationType operationType, Object payload,
+			Message<?> message, Runnable acknowledgment) {
+
+		PendingWrite write;
+		try {
+			write = pendingWrite(operationType, payload, message, acknowledgment);
+		}
+		catch (RuntimeException e) {
+			this.failureHandler.deadLetter(message, e);
+			acknowledgment.run();
+			return;
+		}
+		BsonDocument key = null;
+		if (this.batchCoalesce) {
+			key = write.filter != null ? write.filter : this.writePlan.keyFilter(write.document);
+		}
+		boolean full;
+		synchronized (this.batchMonitor) {
+			List<PendingWrite> writes = this.batch.computeIfAbsent(collectionName, name -> new ArrayList<>());
+			if (key != null) {
+				coalesce(collectionName, writes, write, key);
+			}
+			else {
+				writes.add(write);
+			}
+			this.batchBytes += sizeOf(payload);
+			AdaptiveBatchSizer batchSizer = this.batchSizer;
+			full = ++this.batchCount >= (batchSizer != null ? batchSizer.size() : this.batchSize)
+					|| (this.batchMaxBytes > 0 && this.batchBytes >= this.batchMaxBytes);
+			if (!full) {
+				scheduleFlushOnTimeout();
+			}
+		}
+		if (full) {
+			flush();
+		}
+	}
+
+	/**
+	 * Put the unapplied writes of a failed bulk operation back in front of the batch of their collection,
+	 * ahead of the writes added meanwhile, so they are retried with the next flush.
+	 */
+	private void requeue(String collectionName, List<PendingWrite> writes) {
+		synchronized (this.batchMonitor) {
+			this.batch.computeIfAbsent(collectionName, name -> new ArrayList<>()).addAll(0, writes);
+			// the coalescing indexes of the writes added meanwhile have moved
+			this.batchKeys.remove(collectionName);
+			this.batchCount += writes.size();
+			scheduleFlushOnTimeout();
+		}
+	}
+
+	/**
+	 * Must be called under the batch monitor.
+	 */
+	private void scheduleFlushOnTimeout() {
+		if (this.batchTimeoutTask == null) {
+			AdaptiveBatchSizer batchSizer = this.batchSizer;
+			long batchTimeout = batchSizer != null ? batchSizer.timeout() : this.batchTimeout;
+			this.batchTimeoutTask = getTaskScheduler().schedule(this::flushOnTimeout,
+					new Date(System.currentTimeMillis() + batchTimeout));
+		}
+	}
+
+	private PendingWrite pendingWrite(OperationType operationType, Object payload, Message<?> message,
+			Runnable acknowledgment) {
+
+		List<Message<?>> messages = Collections.singletonList(message);
+		RawBsonDocument document = toRawBson(payload);
+		switch (operationType) {
+			case UPDATE:
+				return new PendingWrite(operationType, this.writePlan.keyFilter(document),
+						this.writePlan.update(document), null, this.upsert, messages, acknowledgment);
+			case DELETE:
+				return new PendingWrite(operationType, this.writePlan.keyFilter(document),
+						null, null, false, messages, acknowledgment);
+			default:
+				BsonDocument filter = this.upsert ? this.writePlan.keyFilter(document) : null;
+				return new PendingWrite(operationType, filter, null, document, this.upsert, messages, acknowledgment);
+		}
+	}
+
+	/**
+	 * Add the write to the batch, coalescing it with the previous write for the same key, if any.
+	 * Must be called under the batch monitor.
+	 */
+	private void coalesce(String collectionName, List<PendingWrite> writes, PendingWrite write, BsonDocument key) {
+		Map<BsonDocument, Integer> keys = this.batchKeys.computeIfAbsent(collectionName, name -> new HashMap<>());
+		Integer index = keys.get(key);
+		PendingWrite previous = index != null ? writes.get(index) : null;
+		if (previous != null) {
+			if (previous.operationType == OperationType.UPDATE && write.operationType == OperationType.UPDATE) {
+				writes.set(index, previous.merge(write));
+				return;
+			}
+			if (previous.operationType != OperationType.DELETE && write.operationType == OperationType.DELETE) {
+				writes.set(index, null);
+				write = write.following(previous);
+			}
+		}
+		keys.put(key, writes.size());
+		writes.add(write);
+	}
+
+	private void flushOnTimeout() {
+		try {
+			flush();
+		}
+		catch (Exception e) {
+			Logger.error("Failed to flush the batch on timeout", e);
+		}
+	}
+
+	/**
+	 * Replace the document matching the key fields with the payload, inserting it if there is none.
+	 */
+	private UpdateResult replaceDocument(Object payload, String collectionName) {
+		RawBsonDocument document = toRawBson(payload);
+		return executeInCollection(collectionName, OperationType.INSERT,
+				collection -> collection.replaceOne(this.writePlan.keyFilter(document), document, UPSERT));
+	}
+
+	/**
+	 * Write a {@link RawBsonDocument} straight through the driver, bypassing the {@link MongoConverter}.
+	 * Like {@link MongoOperations#save(Object, String)}, a document with an {@code _id} replaces the stored one.
+	 */
+	private void saveRawDocument(RawBsonDocument document, String collectionName) {
+		executeInCollection(collectionName, OperationType.INSERT, collection -> {
+			BsonValue id = document.get("_id");
+			if (id == null) {
+				collection.insertOne(document);
+			}
+			else {
+				collection.replaceOne(new BsonDocument("_id", id), document, UPSERT);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Write the other payloads as converted by the {@link MongoConverter}, with the same semantics
+	 * as {@link MongoOperations#save(Object, String)}.
+	 */
+	private void saveDocument(Object payload, String collectionName) {
+		Document document = new Document();
+		this.mongoTemplate.getConverter().write(payload, document);
+		executeInCollection(collectionName, OperationType.INSERT, rawCollection -> {
+			MongoCollection<Document> collection = rawCollection.withDocumentClass(Document.class);
+			Object id = document.get("_id");
+			if (id == null) {
+				collection.insertOne(document);
+			}
+			else {
+				collection.replaceOne(new Document("_id", id), document, UPSERT);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Run the action against the cached collection handle, with the write concern of the operation type,
+	 * translating the driver exceptions like the {@link MongoTemplate} does.
+	 */
+	private <T> T executeInCollection(String collectionName, OperationType operationType,
+			Function<MongoCollection<RawBsonDocument>, T> action) {
+
+		try {
+			MongoCollection<RawBsonDocument> collection =
+					this.collections.computeIfAbsent(collectionName, this::rawCollection);
+			WriteConcern writeConcern = writeConcernOf(operationType);
+			return action.apply(writeConcern != null ? collection.withWriteConcern(writeConcern) : collection);
+		}
+		catch (RuntimeException e) {
+			throw translate(e);
+		}
+	}
+
+	/**
+	 * A cache of the collection handles by name, evicting the least recently used ones over the size.
+	 */
+	static <C> Map<String, C> collectionCache(int size) {
+		return Collections.synchronizedMap(new LinkedHashMap<String, C>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, C> eldest) {
+				return size() > size;
+			}
+
+		});
+	}
+
+	static RuntimeException translate(RuntimeException e) {
+		DataAccessException translated = EXCEPTION_TRANSLATOR.translateExceptionIfPossible(e);
+		return translated != null ? translated : e;
+	}
+
+	/**
+	 * The cached collection handle for the bulk writes, which mix the operation types,
+	 * with the sink write concern.
+	 */
+	private MongoCollection<RawBsonDocument> bulkCollection(String collectionName) {
+		MongoCollection<RawBsonDocument> collection =
+				this.collections.computeIfAbsent(collectionName, this::rawCollection);
+		return this.writeConcern != null ? collection.withWriteConcern(this.writeConcern) : collection;
+	}
+
+	private MongoCollection<RawBsonDocument> rawCollection(String collectionName) {
+		return this.mongoTemplate.getCollection(collectionName).withDocumentClass(RawBsonDocument.class);
+	}
+
+	/**
+	 * Encode the {@code String}, JSON {@code byte[]}, {@link Document} and {@link RawBsonDocument} payloads
+	 * into a {@link RawBsonDocument}, without the {@link MongoConverter}.
+	 * @return the document, or {@code null} for other payloads.
+	 */
+	static RawBsonDocument toRawDocument(Object payload) {
+		if (payload instanceof RawBsonDocument) {
+			return (RawBsonDocument) payload;
+		}
+		if (payload instanceof String) {
+			return RawBsonDocument.parse((String) payload);
+		}
+		if (payload instanceof Document) {
+			return new RawBsonDocument((Document) payload, DOCUMENT_CODEC);
+		}
+		if (payload instanceof byte[]) {
+			// JSON bytes the channel interceptor failed to encode: encoded here, so the failure is
+			// handled, e.g. dead-lettered, like the ones of the writes
+			RawBsonDocument document = JSON_ENCODER.encode((byte[]) payload);
+			return document != null
+					? document
+					: RawBsonDocument.parse(new String((byte[]) payload, StandardCharsets.UTF_8));
+		}
+		return null;
+	}
+
+	private RawBsonDocument toRawBson(Object payload) {
+		RawBsonDocument document = toRawDocument(payload);
+		return document != null ? document : new RawBsonDocument(toDocument(payload), DOCUMENT_CODEC);
+	}
+
+	private Document toDocument(Object payload) {
+		if (payload instanceof Document) {
+			return (Document) payload;
+		}
+		if (payload instanceof RawBsonDocument) {
+			return ((RawBsonDocument) payload).decode(DOCUMENT_CODEC);
+		}
+		if (payload instanceof String) {
+			return Document.parse((String) payload);
+		}
+		Document document = new Document();
+		this.mongoTemplate.getConverter().write(payload, document);
+		return document;
+	}
+
+	private static long sizeOf(Object payload) {
+		if (payload instanceof String) {
+			return ((String) payload).length();
+		}
+		if (payload instanceof byte[]) {
+			return ((byte[]) payload).length;
+		}
+		if (payload instanceof RawBsonDocument) {
+			return ((RawBsonDocument) payload).getByteBuffer().remaining();
+		}
+		return 0;
+	}
+
+	/**
+	 * The write operations supported by this handler, resolved from the
+	 * {@link #OPERATION_TYPE} message header. Unknown or missing values fall back to an insert.
+	 */
+	public enum OperationType {
+
+		INSERT, UPDATE, DELETE;
+
+		public static OperationType of(Object header) {
+			if (header == null) {
+				return INSERT;
+			}
+			switch (header.toString()) {
 				case "U":
 				case "u":
 				case "update":
 				case "Update":
 				case "UPDATE":
-					BasicDBObject dbObject = BasicDBObject.parse(payload.toString());
-					Set<String> keys = dbObject.keySet();
-					Update updatedData = new Update();
-					for (String key:keys) {
-						if(!getUniqueFieldNames().contains(key))
-							updatedData.set(key,dbObject.get(key));
-					}
-					Query updateQuery = new Query();
-					for (String queryFieldName:getUniqueFieldNames()) {
-						updateQuery.addCriteria(new Criteria(queryFieldName).is(dbObject.get(queryFieldName)));
-					}
-					Logger.debug("Updated records Query: {}",updateQuery.toString());
-					Object result = this.mongoTemplate.updateMulti(updateQuery,updatedData,collectionName);
-					Logger.info("Updated records counts: {}",result.toString());
-				break;
-				//Delete Operation
+					return UPDATE;
 				case "D":
 				case "d":
 				case "DELETE":
 				case "Delete":
 				case "delete":
-					BasicDBObject dbObjectRec = BasicDBObject.parse(payload.toString());
-					Query deleteQuery = new Query();
-					for (String queryFieldName:getUniqueFieldNames()) {
-						deleteQuery.addCriteria(new Criteria(queryFieldName).is(dbObjectRec.get(queryFieldName)));
-					}
-					Logger.info("Delete object query {}",deleteQuery.toString());
-					Object resultd = this.mongoTemplate.remove(deleteQuery, collectionName);
-					Logger.info("Delete records counts: {}",resultd.toString());
-				break;
+					return DELETE;
 				default:
-					this.mongoTemplate.save(payload, collectionName);
-				break;
+					return INSERT;
+			}
+		}
 
+		/**
+		 * Resolve the operation type of an element of a {@link List} payload.
+		 */
+		static OperationType of(Message<?> message, int index) {
+			Object convertedHeaders = message.getHeaders().get(KafkaHeaders.BATCH_CONVERTED_HEADERS);
+			if (convertedHeaders instanceof List && ((List<?>) convertedHeaders).size() > index) {
+				Object headers = ((List<?>) convertedHeaders).get(index);
+				if (headers instanceof Map && ((Map<?, ?>) headers).containsKey(OPERATION_TYPE)) {
+					return of(((Map<?, ?>) headers).get(OPERATION_TYPE));
+				}
 			}
-		}else {
-			Object payload = message.getPayload();
-			this.mongoTemplate.save(payload, collectionName);
+			Object header = message.getHeaders().get(OPERATION_TYPE);
+			if (header instanceof List) {
+				List<?> headers = (List<?>) header;
+				return of(headers.size() > index ? headers.get(index) : null);
+			}
+			return of(header);
 		}
+
 	}
+
+	/**
+	 * The key fields compiled from the {@code uniqueFieldName} configuration.
+	 * Builds the key filter and the {@code $set} of the non-key fields for a document
+	 * without splitting the configuration or creating intermediate collections per message.
+	 */
+	static final class WritePlan {
+
+		private static final String[] ID_FIELD = { "_id" };
+
+		private final String[] keyFields;
+
+		private final Set<String> keyFieldSet;
+
+		private WritePlan(String[] keyFields) {
+			this.keyFields = keyFields;
+			this.keyFieldSet = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(keyFields)));
+		}
+
+		static WritePlan of(String uniqueFieldName) {
+			return new WritePlan(StringUtils.tokenizeToStringArray(uniqueFieldName, ","));
+		}
+
+		BsonDocument keyFilter(RawBsonDocument document) {
+			assertKeyFields();
+			BsonDocument filter = new BsonDocument();
+			for (String keyField : this.keyFields) {
+				BsonValue value = document.get(keyField);
+				filter.put(keyField, value != null ? value : BsonNull.VALUE);
+			}
+			return filter;
+		}
+
+		private void assertKeyFields() {
+			Assert.state(this.keyFields.length > 0,
+					"The 'queryfieldname' is required for the update, delete and upsert operations");
+		}
+
+		/**
+		 * Build the driver level write of a document, with the same semantics as the single writes
+		 * of the handler.
+		 */
+		WriteModel<RawBsonDocument> writeModel(OperationType operationType, RawBsonDocument document,
+				boolean upsert) {
+
+			switch (operationType) {
+				case UPDATE:
+					return upsert
+							? new UpdateOneModel<>(keyFilter(document), update(document), UPDATE_UPSERT)
+							: new UpdateManyModel<>(keyFilter(document), update(document));
+				case DELETE:
+					return new DeleteManyModel<>(keyFilter(document));
+				default:
+					if (upsert) {
+						return new ReplaceOneModel<>(keyFilter(document), document, UPSERT);
+					}
+					BsonValue id = document.get("_id");
+					return id != null
+							? new ReplaceOneModel<>(new BsonDocument("_id", id), document, UPSERT)
+							: new InsertOneModel<>(document);
+			}
+		}
+
+		BsonDocument update(RawBsonDocument document) {
+			BsonDocument set = new BsonDocument();
+			for (Map.Entry<String, BsonValue> entry : document.entrySet()) {
+				if (!this.keyFieldSet.contains(entry.getKey())) {
+					set.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return new BsonDocument("$set", set);
+		}
+
+		/**
+		 * Hash the key field values, or the {@code _id} when no key fields are configured,
+		 * of a {@link Document} or a {@link RawBsonDocument}. BSON values are hashed as their
+		 * decoded Java values, so both forms of the same document give the same hash.
+		 * @return the hash, or {@code null} if the payload carries no key.
+		 */
+		Integer keyHash(Object payload) {
+			String[] fields = this.keyFields.length > 0 ? this.keyFields : ID_FIELD;
+			int hash = 1;
+			boolean keyed = false;
+			for (String field : fields) {
+				Object value = keyValue(payload, field);
+				keyed |= value != null;
+				hash = 31 * hash + Objects.hashCode(value);
+			}
+			return keyed ? hash : null;
+		}
+
+		private static Object keyValue(Object payload, String field) {
+			if (payload instanceof Document) {
+				return ((Document) payload).get(field);
+			}
+			if (payload instanceof RawBsonDocument) {
+				BsonValue value = ((RawBsonDocument) payload).get(field);
+				if (value == null) {
+					return null;
+				}
+				switch (value.getBsonType()) {
+					case STRING:
+						return value.asString().getValue();
+					case INT32:
+						return value.asInt32().getValue();
+					case INT64:
+						return value.asInt64().getValue();
+					case OBJECT_ID:
+						return value.asObjectId().getValue();
+					default:
+						return DOCUMENT_CODEC.decode(new BsonDocumentReader(new BsonDocument(field, value)),
+								DecoderContext.builder().build()).get(field);
+				}
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * A write accumulated in the batch until the next flush, with its key filter and {@code $set}
+	 * built from the raw document. Documents carrying an {@code _id} replace the stored one, or are
+	 * inserted, to keep the {@code save()} semantics. In the upsert mode, inserts replace the document
+	 * matching the key fields and updates modify a single document, creating it if it does not exist.
+	 */
+	private static final class PendingWrite {
+
+		private final OperationType operationType;
+
+		private final BsonDocument filter;
+
+		private final BsonDocument update;
+
+		private final RawBsonDocument document;
+
+		private final boolean upsert;
+
+		private final List<Message<?>> messages;
+
+		private final Runnable acknowledgment;
+
+		/**
+		 * The number of flushes which failed to apply the write.
+		 */
+		private int flushes;
+
+		PendingWrite(OperationType operationType, BsonDocument filter, BsonDocument update,
+				RawBsonDocument document, boolean upsert, List<Message<?>> messages, Runnable acknowledgment) {
+
+			this.operationType = operationType;
+			this.filter = filter;
+			this.update = update;
+			this.document = document;
+			this.upsert = upsert;
+			this.messages = messages;
+			this.acknowledgment = acknowledgment;
+		}
+
+		/**
+		 * Merge the {@code $set} of the next update for the same key into this one.
+		 */
+		PendingWrite merge(PendingWrite next) {
+			BsonDocument set = new BsonDocument();
+			set.putAll(this.update.getDocument("$set"));
+			set.putAll(next.update.getDocument("$set"));
+			List<Message<?>> messages = new ArrayList<>(this.messages);
+			messages.addAll(next.messages);
+			return new PendingWrite(this.operationType, this.filter, new BsonDocument("$set", set),
+					null, this.upsert, messages, following(this.acknowledgment, next.acknowledgment));
+		}
+
+		/**
+		 * Take over the acknowledgment of the previous write for the same key, which is dropped.
+		 */
+		PendingWrite following(PendingWrite previous) {
+			return new PendingWrite(this.operationType, this.filter, this.update, this.document, this.upsert,
+					this.messages, following(previous.acknowledgment, this.acknowledgment));
+		}
+
+		private static Runnable following(Runnable first, Runnable second) {
+			return () -> {
+				first.run();
+				second.run();
+			};
+		}
+
+		WriteModel<RawBsonDocument> writeModel() {
+			switch (this.operationType) {
+				case UPDATE:
+					return this.upsert
+							? new UpdateOneModel<>(this.filter, this.update, UPDATE_UPSERT)
+							: new UpdateManyModel<>(this.filter, this.update);
+				case DELETE:
+					return new DeleteManyModel<>(this.filter);
+				default:
+					if (this.filter != null) {
+						return new ReplaceOneModel<>(this.filter, this.document, UPSERT);
+					}
+					BsonValue id = this.document.get("_id");
+					return id != null
+							? new ReplaceOneModel<>(new BsonDocument("_id", id), this.document, UPSERT)
+							: new InsertOneModel<>(this.document);
+			}
+		}
+
+	}
+
 }
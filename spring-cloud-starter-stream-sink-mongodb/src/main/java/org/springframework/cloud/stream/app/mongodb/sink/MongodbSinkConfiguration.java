@@ -17,14 +17,32 @@
 package org.springframework.cloud.stream.app.mongodb.sink;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
+import com.mongodb.WriteConcern;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.bson.RawBsonDocument;
+
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.app.mongodb.sink.MongoDbSinkProperties.WriteConcernProperties;
+import org.springframework.cloud.stream.app.mongodb.sink.MongoDbStoringMessageHandler.OperationType;
+import org.springframework.cloud.stream.binder.kafka.KafkaBindingRebalanceListener;
+import org.springframework.cloud.stream.binding.BinderAwareChannelResolver;
 import org.springframework.cloud.stream.config.BindingProperties;
 import org.springframework.cloud.stream.messaging.Sink;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.expression.Expression;
 import org.springframework.expression.common.LiteralExpression;
 import org.springframework.integration.annotation.ServiceActivator;
@@ -35,17 +53,26 @@ import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.MessageHandler;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.util.StringUtils;
 
 /**
  * A starter configuration for MongoDB Sink applications.
  * Produces {@link MongoDbStoringMessageHandler} which ingests
  * incoming data into MongoDB Collection.
+ * JSON and {@code application/bson} {@code byte[]} payloads, or elements of {@link List} payloads,
+ * are converted to {@link RawBsonDocument} without an intermediate {@link String}.
+ * The JSON which cannot be converted is left as is, so its failure is handled by the handler, e.g. dead-lettered,
+ * like the ones of the writes.
+ * The messages whose write failed permanently are sent to the 'deadLetterDestination', if any,
+ * bound on demand through the {@link BinderAwareChannelResolver}.
+ * The MongoDB clients are configured by the {@link MongoDbClientConfiguration}.
  *
  * @author Artem Bilan
  *
  */
 @EnableBinding(Sink.class)
 @EnableConfigurationProperties(MongoDbSinkProperties.class)
+@Import(MongoDbClientConfiguration.class)
 public class MongodbSinkConfiguration {
 
 	@Autowired
@@ -54,17 +81,139 @@ public class MongodbSinkConfiguration {
 	@Autowired
 	private MongoTemplate mongoTemplate;
 
+	@Autowired
+	private ObjectProvider<ReactiveMongoTemplate> reactiveMongoTemplate;
+
+	@Autowired
+	private ObjectProvider<MeterRegistry> meterRegistry;
+
+	@Autowired
+	private ObjectProvider<BinderAwareChannelResolver> channelResolver;
+
 	@Bean
 	@ServiceActivator(inputChannel = Sink.INPUT)
 	public MessageHandler mongoDbSinkMessageHandler() {
+		if (this.properties.isReactive()) {
+			ReactiveMongoDbStoringMessageHandler reactiveMessageHandler =
+					new ReactiveMongoDbStoringMessageHandler(this.reactiveMongoTemplate.getObject());
+			reactiveMessageHandler.setCollectionNameExpression(collectionExpression());
+			reactiveMessageHandler.setCollectionHeader(this.properties.getCollectionHeader());
+			reactiveMessageHandler.setCollectionCacheSize(this.properties.getCollectionCacheSize());
+			reactiveMessageHandler.setUniqueFieldName(this.properties.getQueryfieldname());
+			reactiveMessageHandler.setUpsert(this.properties.isUpsert());
+			reactiveMessageHandler.setMaxInFlight(this.properties.getMaxInFlight());
+			reactiveMessageHandler.setWriteConcern(writeConcern(this.properties.getWriteConcern()));
+			forEachWriteConcern(reactiveMessageHandler::setWriteConcern);
+			reactiveMessageHandler.setRetryMaxAttempts(this.properties.getRetryMaxAttempts());
+			reactiveMessageHandler.setRetryInitialInterval(this.properties.getRetryInitialInterval());
+			reactiveMessageHandler.setRetryMultiplier(this.properties.getRetryMultiplier());
+			reactiveMessageHandler.setRetryMaxInterval(this.properties.getRetryMaxInterval());
+			reactiveMessageHandler.setDeadLetterChannel(deadLetterChannel());
+			reactiveMessageHandler.setMetricsMaxCollections(this.properties.getMetricsMaxCollections());
+			this.meterRegistry.ifAvailable(reactiveMessageHandler::setMeterRegistry);
+			return reactiveMessageHandler;
+		}
 		MongoDbStoringMessageHandler mongoDbMessageHandler = new MongoDbStoringMessageHandler(this.mongoTemplate);
+		mongoDbMessageHandler.setCollectionNameExpression(collectionExpression());
+		mongoDbMessageHandler.setCollectionHeader(this.properties.getCollectionHeader());
+		mongoDbMessageHandler.setCollectionCacheSize(this.properties.getCollectionCacheSize());
+		mongoDbMessageHandler.setUniqueFieldName(this.properties.getQueryfieldname());
+		mongoDbMessageHandler.setBatchSize(this.properties.getBatchSize());
+		mongoDbMessageHandler.setBatchMaxBytes(this.properties.getBatchMaxBytes());
+		mongoDbMessageHandler.setBatchTimeout(this.properties.getBatchTimeout());
+		mongoDbMessageHandler.setBatchOrdered(this.properties.isBatchOrdered());
+		mongoDbMessageHandler.setBatchCoalesce(this.properties.isBatchCoalesce());
+		mongoDbMessageHandler.setBatchTargetLatency(this.properties.getBatchTargetLatency());
+		mongoDbMessageHandler.setUpsert(this.properties.isUpsert());
+		mongoDbMessageHandler.setWorkers(this.properties.getWorkers());
+		mongoDbMessageHandler.setWorkerQueueCapacity(this.properties.getWorkerQueueCapacity());
+		mongoDbMessageHandler.setWorkerShutdownTimeout(this.properties.getWorkerShutdownTimeout());
+		mongoDbMessageHandler.setWriteConcern(writeConcern(this.properties.getWriteConcern()));
+		forEachWriteConcern(mongoDbMessageHandler::setWriteConcern);
+		mongoDbMessageHandler.setRetryMaxAttempts(this.properties.getRetryMaxAttempts());
+		mongoDbMessageHandler.setRetryInitialInterval(this.properties.getRetryInitialInterval());
+		mongoDbMessageHandler.setRetryMultiplier(this.properties.getRetryMultiplier());
+		mongoDbMessageHandler.setRetryMaxInterval(this.properties.getRetryMaxInterval());
+		mongoDbMessageHandler.setDeadLetterChannel(deadLetterChannel());
+		mongoDbMessageHandler.setMetricsMaxCollections(this.properties.getMetricsMaxCollections());
+		this.meterRegistry.ifAvailable(mongoDbMessageHandler::setMeterRegistry);
+		return mongoDbMessageHandler;
+	}
+
+	/**
+	 * Forward the partition revocations of the Kafka binder to the sink handler, so it forgets
+	 * the pending records of the revoked partitions.
+	 */
+	@Bean
+	public KafkaBindingRebalanceListener mongoDbSinkRebalanceListener() {
+		return new KafkaBindingRebalanceListener() {
+
+			@Override
+			public void onPartitionsRevokedBeforeCommit(String bindingName, Consumer<?, ?> consumer,
+					Collection<TopicPartition> partitions) {
+
+				MessageHandler messageHandler = mongoDbSinkMessageHandler();
+				if (messageHandler instanceof ReactiveMongoDbStoringMessageHandler) {
+					((ReactiveMongoDbStoringMessageHandler) messageHandler).partitionsRevoked(partitions);
+				}
+				else {
+					((MongoDbStoringMessageHandler) messageHandler).partitionsRevoked(partitions);
+				}
+			}
+
+		};
+	}
+
+	private Expression collectionExpression() {
 		Expression collectionExpression = this.properties.getCollectionExpression();
 		if (collectionExpression == null) {
 			collectionExpression = new LiteralExpression(this.properties.getCollection());
 		}
-		mongoDbMessageHandler.setCollectionNameExpression(collectionExpression);
-		mongoDbMessageHandler.setUniqueFieldName(this.properties.getQueryfieldname());
-		return mongoDbMessageHandler;
+		return collectionExpression;
+	}
+
+	private MessageChannel deadLetterChannel() {
+		String deadLetterDestination = this.properties.getDeadLetterDestination();
+		return StringUtils.hasText(deadLetterDestination)
+				? this.channelResolver.getObject().resolveDestination(deadLetterDestination)
+				: null;
+	}
+
+	private void forEachWriteConcern(BiConsumer<OperationType, WriteConcern> consumer) {
+		if (this.properties.getInsertWriteConcern().isSet()) {
+			consumer.accept(OperationType.INSERT, writeConcern(this.properties.getInsertWriteConcern()));
+		}
+		if (this.properties.getUpdateWriteConcern().isSet()) {
+			consumer.accept(OperationType.UPDATE, writeConcern(this.properties.getUpdateWriteConcern()));
+		}
+		if (this.properties.getDeleteWriteConcern().isSet()) {
+			consumer.accept(OperationType.DELETE, writeConcern(this.properties.getDeleteWriteConcern()));
+		}
+	}
+
+	/**
+	 * Build the write concern of the provided settings, taking the unset attributes from the
+	 * sink write concern settings.
+	 * @return the write concern, or {@code null} when nothing is set.
+	 */
+	private WriteConcern writeConcern(WriteConcernProperties settings) {
+		WriteConcernProperties defaults = this.properties.getWriteConcern();
+		String w = settings.getW() != null ? settings.getW() : defaults.getW();
+		Long wtimeout = settings.getWtimeout() != null ? settings.getWtimeout() : defaults.getWtimeout();
+		Boolean journal = settings.getJournal() != null ? settings.getJournal() : defaults.getJournal();
+		if (w == null && wtimeout == null && journal == null) {
+			return null;
+		}
+		WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED;
+		if (w != null) {
+			writeConcern = w.chars().allMatch(Character::isDigit)
+					? writeConcern.withW(Integer.parseInt(w))
+					: writeConcern.withW(w);
+		}
+		if (wtimeout != null) {
+			writeConcern = writeConcern.withWTimeout(wtimeout, TimeUnit.MILLISECONDS);
+		}
+		return writeConcern.withJournal(journal);
 	}
 
 
@@ -73,24 +222,60 @@ public class MongodbSinkConfiguration {
 	public ChannelInterceptor bytesToStringChannelInterceptor() {
 		return new ChannelInterceptor() {
 
+			private final JsonBytesToBsonEncoder jsonBytesToBsonEncoder = new JsonBytesToBsonEncoder();
+
 			@Override
 			public Message<?> preSend(Message<?> message, MessageChannel channel) {
-				if (message.getPayload() instanceof byte[]) {
-					String contentType = message.getHeaders().containsKey(MessageHeaders.CONTENT_TYPE)
-							? message.getHeaders().get(MessageHeaders.CONTENT_TYPE).toString()
-							: BindingProperties.DEFAULT_CONTENT_TYPE.toString();
-					if (contentType.contains("text") ||
-							contentType.contains("json") ||
-							contentType.contains("x-spring-tuple")) {
-
-						return new MutableMessage<>(
-								new String((byte[]) message.getPayload(), StandardCharsets.UTF_8),
-								message.getHeaders());
+				Object payload = message.getPayload();
+				if (payload instanceof byte[]) {
+					Object converted = convert((byte[]) payload, contentType(message));
+					if (converted != payload) {
+						return new MutableMessage<>(converted, message.getHeaders());
 					}
 				}
+				else if (payload instanceof List) {
+					String contentType = contentType(message);
+					List<Object> converted = new ArrayList<>(((List<?>) payload).size());
+					for (Object element : (List<?>) payload) {
+						converted.add(element instanceof byte[] ? convert((byte[]) element, contentType) : element);
+					}
+					return new MutableMessage<>(converted, message.getHeaders());
+				}
 				return message;
 
 			}
+
+			private String contentType(Message<?> message) {
+				return message.getHeaders().containsKey(MessageHeaders.CONTENT_TYPE)
+						? message.getHeaders().get(MessageHeaders.CONTENT_TYPE).toString()
+						: BindingProperties.DEFAULT_CONTENT_TYPE.toString();
+			}
+
+			private Object convert(byte[] payload, String contentType) {
+				if (contentType.contains("bson")) {
+					return new RawBsonDocument(payload);
+				}
+				if (contentType.contains("json")) {
+					RawBsonDocument document;
+					try {
+						document = this.jsonBytesToBsonEncoder.encode(payload);
+					}
+					catch (RuntimeException e) {
+						// encoded again by the handler, which handles the failure like the ones of the writes
+						return payload;
+					}
+					if (document != null) {
+						return document;
+					}
+				}
+				if (contentType.contains("text") ||
+						contentType.contains("json") ||
+						contentType.contains("x-spring-tuple")) {
+
+					return new String(payload, StandardCharsets.UTF_8);
+				}
+				return payload;
+			}
 		};
 	}
 
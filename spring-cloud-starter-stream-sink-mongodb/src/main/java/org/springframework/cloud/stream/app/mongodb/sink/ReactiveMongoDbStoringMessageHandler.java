@@ -0,0 +1,522 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.kafka.common.TopicPartition;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.cloud.stream.app.mongodb.sink.MongoDbStoringMessageHandler.OperationType;
+import org.springframework.cloud.stream.app.mongodb.sink.MongoDbStoringMessageHandler.WritePlan;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.expression.Expression;
+import org.springframework.expression.common.LiteralExpression;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.integration.expression.ExpressionUtils;
+import org.springframework.integration.handler.AbstractMessageHandler;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * A reactive counterpart of the {@link MongoDbStoringMessageHandler} which writes the
+ * message payloads through the {@link ReactiveMongoOperations}.
+ * <p>
+ * The calling thread only subscribes to the write and returns, so up to
+ * {@link #setMaxInFlight(int) maxInFlight} writes are in flight concurrently without
+ * a thread blocked on each of them. When the limit is reached, the calling thread waits
+ * for a write to complete, which propagates the back pressure to the consumer.
+ * Writes in flight are not ordered relatively to each other; a {@code maxInFlight} of
+ * {@code 1} keeps the strict order of the messages.
+ * <p>
+ * The {@code op_type} header, the key fields, the upsert mode and the write concerns are handled the same
+ * way as by the {@link MongoDbStoringMessageHandler}: the writes go through the driver collection handles,
+ * with the write concern of their operation type, leaving the {@link ReactiveMongoOperations} untouched. The writes failing with a transient error
+ * are retried with an exponential back off, without blocking the calling thread, and the messages of
+ * the writes which still fail are sent to the dead letter channel, or else logged as errors.
+ * A {@link List} payload is written as a single ordered bulk operation, see
+ * {@link MongoDbStoringMessageHandler}.
+ * Messages consumed from Kafka with {@code autoCommitOffset=false} are acknowledged once their
+ * write has succeeded or their message has been dead-lettered, so the offsets only advance past the
+ * writes which are durable. The record of a write which failed otherwise is given up: it is not
+ * acknowledged, but no longer holds back the following records, see {@link WriteAcknowledger}.
+ * The pending records of the {@link #partitionsRevoked(Collection) revoked partitions} are forgotten.
+ * The writes are recorded in the same {@link MongoDbSinkMetrics}, timed from their subscription.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class ReactiveMongoDbStoringMessageHandler extends AbstractMessageHandler implements DisposableBean {
+
+	private final ReactiveMongoOperations mongoOperations;
+
+	private StandardEvaluationContext evaluationContext;
+
+	private Expression collectionNameExpression = new LiteralExpression("data");
+
+	private String collectionHeader;
+
+	private int collectionCacheSize = 100;
+
+	private CollectionNameResolver collectionNameResolver;
+
+	private Map<String, MongoCollection<RawBsonDocument>> collections;
+
+	private String uniqueFieldName;
+
+	private boolean upsert;
+
+	private int maxInFlight = 256;
+
+	private long shutdownTimeout = 30000;
+
+	private WritePlan writePlan;
+
+	private Semaphore inFlight;
+
+	private final WriteAcknowledger acknowledger = new WriteAcknowledger();
+
+	private WriteConcern writeConcern;
+
+	private final Map<OperationType, WriteConcern> writeConcerns = new EnumMap<>(OperationType.class);
+
+	private int retryMaxAttempts = 3;
+
+	private long retryInitialInterval = 1000;
+
+	private double retryMultiplier = 2.0;
+
+	private long retryMaxInterval = 10000;
+
+	private MessageChannel deadLetterChannel;
+
+	private WriteFailureHandler failureHandler;
+
+	private MongoDbSinkMetrics metrics = new MongoDbSinkMetrics(Metrics.globalRegistry);
+
+	private int metricsMaxCollections = MongoDbSinkMetrics.DEFAULT_MAX_COLLECTIONS;
+
+	/**
+	 * Create an instance based on the provided {@link ReactiveMongoOperations}.
+	 *
+	 * @param mongoOperations the reactive mongo operations.
+	 */
+	public ReactiveMongoDbStoringMessageHandler(ReactiveMongoOperations mongoOperations) {
+		Assert.notNull(mongoOperations, "'mongoOperations' must not be null");
+		this.mongoOperations = mongoOperations;
+	}
+
+	/**
+	 * Set the SpEL {@link Expression} that should resolve to a collection name.
+	 *
+	 * @param collectionNameExpression the collection name expression.
+	 */
+	public void setCollectionNameExpression(Expression collectionNameExpression) {
+		Assert.notNull(collectionNameExpression, "'collectionNameExpression' must not be null");
+		this.collectionNameExpression = collectionNameExpression;
+	}
+
+	/**
+	 * Set the message header which, when present, holds the collection name.
+	 *
+	 * @param collectionHeader the collection header name.
+	 */
+	public void setCollectionHeader(String collectionHeader) {
+		this.collectionHeader = collectionHeader;
+	}
+
+	/**
+	 * Set the max number of collection handles kept for the writes.
+	 *
+	 * @param collectionCacheSize the collection cache size.
+	 * @see MongoDbStoringMessageHandler#setCollectionCacheSize(int)
+	 */
+	public void setCollectionCacheSize(int collectionCacheSize) {
+		Assert.isTrue(collectionCacheSize > 0, "'collectionCacheSize' must be greater than 0");
+		this.collectionCacheSize = collectionCacheSize;
+	}
+
+	/**
+	 * Set the comma-separated key fields for the update and delete operations.
+	 *
+	 * @param uniqueFieldName the key fields.
+	 */
+	public void setUniqueFieldName(String uniqueFieldName) {
+		this.uniqueFieldName = uniqueFieldName;
+	}
+
+	/**
+	 * Set whether inserts and updates are upserts filtered on the key fields.
+	 *
+	 * @param upsert the upsert flag.
+	 * @see MongoDbStoringMessageHandler#setUpsert(boolean)
+	 */
+	public void setUpsert(boolean upsert) {
+		this.upsert = upsert;
+	}
+
+	/**
+	 * Set the max number of writes in flight. Defaults to {@code 256}.
+	 *
+	 * @param maxInFlight the max number of writes in flight.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		Assert.isTrue(maxInFlight > 0, "'maxInFlight' must be greater than 0");
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Set the max time in milliseconds to wait for the writes in flight on shutdown.
+	 * Defaults to {@code 30000}.
+	 *
+	 * @param shutdownTimeout the shutdown timeout.
+	 */
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * Set the {@link WriteConcern} of the writes, unless overridden for their operation type.
+	 *
+	 * @param writeConcern the write concern.
+	 * @see MongoDbStoringMessageHandler#setWriteConcern(WriteConcern)
+	 */
+	public void setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+	}
+
+	/**
+	 * Set the {@link WriteConcern} of the writes of the provided operation type.
+	 *
+	 * @param operationType the operation type.
+	 * @param writeConcern the write concern.
+	 * @see MongoDbStoringMessageHandler#setWriteConcern(OperationType, WriteConcern)
+	 */
+	public void setWriteConcern(OperationType operationType, WriteConcern writeConcern) {
+		Assert.notNull(operationType, "'operationType' must not be null");
+		Assert.notNull(writeConcern, "'writeConcern' must not be null");
+		this.writeConcerns.put(operationType, writeConcern);
+	}
+
+	/**
+	 * Set the max number of attempts of a write failing with a transient error. Defaults to {@code 3}.
+	 *
+	 * @param retryMaxAttempts the max number of attempts.
+	 * @see MongoDbStoringMessageHandler#setRetryMaxAttempts(int)
+	 */
+	public void setRetryMaxAttempts(int retryMaxAttempts) {
+		Assert.isTrue(retryMaxAttempts > 0, "'retryMaxAttempts' must be greater than 0");
+		this.retryMaxAttempts = retryMaxAttempts;
+	}
+
+	/**
+	 * Set the back off interval in milliseconds before the first retry. Defaults to {@code 1000}.
+	 *
+	 * @param retryInitialInterval the initial back off interval.
+	 */
+	public void setRetryInitialInterval(long retryInitialInterval) {
+		this.retryInitialInterval = retryInitialInterval;
+	}
+
+	/**
+	 * Set the multiplier of the back off interval between retries. Defaults to {@code 2.0}.
+	 *
+	 * @param retryMultiplier the back off multiplier.
+	 */
+	public void setRetryMultiplier(double retryMultiplier) {
+		this.retryMultiplier = retryMultiplier;
+	}
+
+	/**
+	 * Set the max back off interval in milliseconds between retries. Defaults to {@code 10000}.
+	 *
+	 * @param retryMaxInterval the max back off interval.
+	 */
+	public void setRetryMaxInterval(long retryMaxInterval) {
+		this.retryMaxInterval = retryMaxInterval;
+	}
+
+	/**
+	 * Set the channel to send the messages whose write failed permanently to.
+	 *
+	 * @param deadLetterChannel the dead letter channel.
+	 * @see MongoDbStoringMessageHandler#setDeadLetterChannel(MessageChannel)
+	 */
+	public void setDeadLetterChannel(MessageChannel deadLetterChannel) {
+		this.deadLetterChannel = deadLetterChannel;
+	}
+
+	/**
+	 * Set the {@link MeterRegistry} to record the write metrics in.
+	 * Defaults to the Micrometer global registry.
+	 *
+	 * @param meterRegistry the meter registry.
+	 */
+	public void setMeterRegistry(MeterRegistry meterRegistry) {
+		MongoDbSinkMetrics metrics = new MongoDbSinkMetrics(meterRegistry);
+		metrics.setMaxCollections(this.metricsMaxCollections);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the max number of collections tagged on the write metrics, the writes to the others
+	 * being tagged {@value MongoDbSinkMetrics#OTHER_COLLECTION}.
+	 * Defaults to {@value MongoDbSinkMetrics#DEFAULT_MAX_COLLECTIONS}.
+	 *
+	 * @param metricsMaxCollections the max number of collections.
+	 */
+	public void setMetricsMaxCollections(int metricsMaxCollections) {
+		this.metrics.setMaxCollections(metricsMaxCollections);
+		this.metricsMaxCollections = metricsMaxCollections;
+	}
+
+	@Override
+	public String getComponentType() {
+		return "mongo:reactive-outbound-channel-adapter";
+	}
+
+	@Override
+	protected void onInit() {
+		this.evaluationContext = ExpressionUtils.createStandardEvaluationContext(getBeanFactory());
+		this.collectionNameResolver = new CollectionNameResolver(this.collectionNameExpression,
+				this.collectionHeader, this.evaluationContext);
+		this.collections = MongoDbStoringMessageHandler.collectionCache(this.collectionCacheSize);
+		this.writePlan = WritePlan.of(this.uniqueFieldName);
+		Assert.isTrue(!this.upsert || StringUtils.hasText(this.uniqueFieldName),
+				"The 'uniqueFieldName' is required for the upsert mode");
+		this.inFlight = new Semaphore(this.maxInFlight);
+		this.failureHandler = new WriteFailureHandler(this.retryMaxAttempts, this.retryInitialInterval,
+				this.retryMultiplier, this.retryMaxInterval, this.deadLetterChannel);
+	}
+
+	@Override
+	protected void handleMessageInternal(Message<?> message) throws Exception {
+		String collectionName = this.collectionNameResolver.resolve(message);
+		OperationType operationType =
+				OperationType.of(message.getHeaders().get(MongoDbStoringMessageHandler.OPERATION_TYPE));
+		Object payload = message.getPayload();
+		Mono<?> write = payload instanceof List
+				? Mono.defer(() -> writeAll(collectionName, message, (List<?>) payload))
+				: Mono.defer(() -> {
+					long start = this.metrics.start();
+					return write(collectionName, operationType, payload, start)
+							.doOnError(error ->
+									this.metrics.recordFailure(collectionName, operationType, this.upsert, start, error));
+				})
+						.retryWhen(this.failureHandler::retryTransient)
+						.onErrorResume(error -> {
+							this.failureHandler.deadLetter(message, error);
+							return Mono.empty();
+						});
+		this.inFlight.acquire();
+		Runnable acknowledgment = this.acknowledger.register(message);
+		write.doOnSuccess(result -> acknowledgment.run())
+				.doFinally(signal -> this.inFlight.release())
+				.subscribe(null, error -> {
+					logger.error("Failed to write into the '" + collectionName
+							+ "' collection, the message is not acknowledged", error);
+					this.acknowledger.evict(message);
+				});
+	}
+
+	/**
+	 * Forget the pending records of the revoked Kafka partitions: the writes still in flight
+	 * for them are no longer acknowledged, their records being consumed again by the next owner
+	 * of the partitions.
+	 * @param partitions the revoked partitions.
+	 */
+	public void partitionsRevoked(Collection<TopicPartition> partitions) {
+		this.acknowledger.revoke(partitions);
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		if (this.inFlight != null
+				&& !this.inFlight.tryAcquire(this.maxInFlight, this.shutdownTimeout, TimeUnit.MILLISECONDS)) {
+			logger.warn("Writes in flight were not completed within " + this.shutdownTimeout + "ms");
+		}
+	}
+
+	private Mono<?> write(String collectionName, OperationType operationType, Object payload, long start) {
+		switch (operationType) {
+			case UPDATE:
+				RawBsonDocument updated = toRawBson(payload);
+				BsonDocument filter = this.writePlan.keyFilter(updated);
+				BsonDocument update = this.writePlan.update(updated);
+				return execute(collectionName, OperationType.UPDATE,
+						collection -> this.upsert
+								? collection.updateOne(filter, update, new UpdateOptions().upsert(true))
+								: collection.updateMany(filter, update))
+						.doOnSuccess(result -> this.metrics.recordUpdate(collectionName, start, result));
+			case DELETE:
+				BsonDocument deleteFilter = this.writePlan.keyFilter(toRawBson(payload));
+				return execute(collectionName, OperationType.DELETE, collection -> collection.deleteMany(deleteFilter))
+						.doOnSuccess(result -> this.metrics.recordDelete(collectionName, start, result));
+			default:
+				if (this.upsert) {
+					return execute(collectionName, OperationType.INSERT,
+							collection -> replaceDocument(collection, payload))
+							.doOnSuccess(result -> this.metrics.recordReplace(collectionName, start, result));
+				}
+				RawBsonDocument rawDocument = MongoDbStoringMessageHandler.toRawDocument(payload);
+				Mono<?> insert = rawDocument != null
+						? execute(collectionName, OperationType.INSERT,
+								collection -> saveRawDocument(collection, rawDocument))
+						: execute(collectionName, OperationType.INSERT,
+								collection -> saveDocument(collection, payload));
+				return insert.doOnSuccess(result -> this.metrics.recordInsert(collectionName, start));
+		}
+	}
+
+	/**
+	 * Run the action against the cached collection handle, with the write concern of the operation type,
+	 * translating the driver exceptions like the {@link ReactiveMongoOperations} do.
+	 */
+	private <T> Mono<T> execute(String collectionName, OperationType operationType,
+			Function<MongoCollection<RawBsonDocument>, Publisher<T>> action) {
+
+		WriteConcern writeConcern = this.writeConcerns.getOrDefault(operationType, this.writeConcern);
+		return Mono.defer(() -> Mono.from(action.apply(collection(collectionName, writeConcern))))
+				.onErrorMap(RuntimeException.class, MongoDbStoringMessageHandler::translate);
+	}
+
+	private Mono<Void> writeAll(String collectionName, Message<?> message, List<?> payloads) {
+		List<WriteModel<RawBsonDocument>> writes = new ArrayList<>(payloads.size());
+		List<Integer> indexes = new ArrayList<>(payloads.size());
+		for (int i = 0; i < payloads.size(); i++) {
+			try {
+				writes.add(this.writePlan.writeModel(OperationType.of(message, i), toRawBson(payloads.get(i)),
+						this.upsert));
+				indexes.add(i);
+			}
+			catch (RuntimeException e) {
+				writes.add(null);
+				this.failureHandler.deadLetter(MongoDbStoringMessageHandler.elementMessage(message, payloads.get(i)), e);
+			}
+		}
+		return bulkWrite(collectionName, message, payloads, writes, indexes, 1);
+	}
+
+	/**
+	 * Write the elements of the provided indexes as an ordered bulk operation, then retry
+	 * the ones which failed transiently, if any, after the back off interval.
+	 */
+	private Mono<Void> bulkWrite(String collectionName, Message<?> message, List<?> payloads,
+			List<WriteModel<RawBsonDocument>> writes, List<Integer> indexes, int attempt) {
+
+		if (indexes.isEmpty()) {
+			return Mono.empty();
+		}
+		List<WriteModel<RawBsonDocument>> pending = indexes.stream().map(writes::get).collect(Collectors.toList());
+		long start = this.metrics.start();
+		return Mono.defer(() -> Mono.from(collection(collectionName, this.writeConcern).bulkWrite(pending)))
+				.onErrorMap(RuntimeException.class, MongoDbStoringMessageHandler::translate)
+				.doOnSuccess(result -> this.metrics.recordBulk(collectionName, start, pending.size(), result))
+				.doOnError(error -> this.metrics.recordBulkFailure(collectionName, start, pending.size(), error))
+				.then()
+				.onErrorResume(error -> {
+					List<Integer> retries = this.failureHandler.handleBulkFailure(error, indexes, attempt, true,
+							index -> Collections.singletonList(
+									MongoDbStoringMessageHandler.elementMessage(message, payloads.get(index))));
+					if (retries.isEmpty()) {
+						return Mono.empty();
+					}
+					return Mono.delay(Duration.ofMillis(this.failureHandler.backOffInterval(attempt)))
+							.then(Mono.defer(() ->
+									bulkWrite(collectionName, message, payloads, writes, retries, attempt + 1)));
+				});
+	}
+
+	private Publisher<UpdateResult> replaceDocument(MongoCollection<RawBsonDocument> collection, Object payload) {
+		ReplaceOptions options = new ReplaceOptions().upsert(true);
+		RawBsonDocument document = toRawBson(payload);
+		return collection.replaceOne(this.writePlan.keyFilter(document), document, options);
+	}
+
+	private Publisher<Void> saveRawDocument(MongoCollection<RawBsonDocument> collection, RawBsonDocument document) {
+		BsonValue id = document.get("_id");
+		if (id == null) {
+			return Mono.from(collection.insertOne(document)).then();
+		}
+		return Mono.from(collection.replaceOne(new BsonDocument("_id", id), document, new ReplaceOptions().upsert(true)))
+				.then();
+	}
+
+	/**
+	 * Write the other payloads as converted by the {@link MongoConverter}, with the same semantics
+	 * as {@link ReactiveMongoOperations#save(Object, String)}.
+	 */
+	private Publisher<Void> saveDocument(MongoCollection<RawBsonDocument> rawCollection, Object payload) {
+		Document document = new Document();
+		this.mongoOperations.getConverter().write(payload, document);
+		MongoCollection<Document> collection = rawCollection.withDocumentClass(Document.class);
+		Object id = document.get("_id");
+		if (id == null) {
+			return Mono.from(collection.insertOne(document)).then();
+		}
+		return Mono.from(collection.replaceOne(new Document("_id", id), document, new ReplaceOptions().upsert(true)))
+				.then();
+	}
+
+	private RawBsonDocument toRawBson(Object payload) {
+		RawBsonDocument document = MongoDbStoringMessageHandler.toRawDocument(payload);
+		if (document == null) {
+			Document converted = new Document();
+			this.mongoOperations.getConverter().write(payload, converted);
+			document = new RawBsonDocument(converted, MongoDbStoringMessageHandler.DOCUMENT_CODEC);
+		}
+		return document;
+	}
+
+	/**
+	 * The cached collection handle for the writes bypassing the template, with the provided write concern,
+	 * if any.
+	 */
+	private MongoCollection<RawBsonDocument> collection(String collectionName, WriteConcern writeConcern) {
+		MongoCollection<RawBsonDocument> collection = this.collections.computeIfAbsent(collectionName,
+				name -> this.mongoOperations.getCollection(name).withDocumentClass(RawBsonDocument.class));
+		return writeConcern != null ? collection.withWriteConcern(writeConcern) : collection;
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.kafka.common.TopicPartition;
+
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+
+/**
+ * Acknowledges the Kafka records of the messages carrying a {@link KafkaHeaders#ACKNOWLEDGMENT}
+ * header, i.e. consumed with {@code autoCommitOffset=false}, once their writes are durable,
+ * i.e. have succeeded or have been dead-lettered.
+ * <p>
+ * Writes may complete out of order, while the listener container commits the highest
+ * acknowledged offset of each partition. The records are therefore only acknowledged up to
+ * the lowest offset of the partition whose write is still pending, so a committed offset
+ * never skips a write which may not be durable yet.
+ * <p>
+ * The record of a write which is given up, i.e. whose failure is neither retried nor dead-lettered,
+ * is evicted: it no longer holds back the following records of its partition, whose acknowledgment
+ * also commits its offset. The pending records of a partition are forgotten when the partition is
+ * revoked, since they are consumed again by its next owner.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+class WriteAcknowledger {
+
+	private static final Runnable NO_ACKNOWLEDGMENT = () -> { };
+
+	private final Map<String, PendingOffsets> partitions = new ConcurrentHashMap<>();
+
+	/**
+	 * Register the message before its write is started.
+	 * @param message the message.
+	 * @return the callback to run once the write has succeeded or the message has been dead-lettered.
+	 */
+	Runnable register(Message<?> message) {
+		MessageHeaders headers = message.getHeaders();
+		Acknowledgment acknowledgment = headers.get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+		if (acknowledgment == null) {
+			return NO_ACKNOWLEDGMENT;
+		}
+		Object offsetHeader = headers.get(KafkaHeaders.OFFSET);
+		if (!(offsetHeader instanceof Long)) {
+			// a batch of records, written at once
+			return acknowledgment::acknowledge;
+		}
+		long offset = (Long) offsetHeader;
+		PendingOffsets pendingOffsets = this.partitions.computeIfAbsent(partition(headers), key -> new PendingOffsets());
+		pendingOffsets.add(offset, acknowledgment);
+		return () -> pendingOffsets.complete(offset);
+	}
+
+	/**
+	 * Evict the record of a registered message whose write is given up, so it no longer holds back
+	 * the acknowledgment of the following records of its partition.
+	 * @param message the message.
+	 */
+	void evict(Message<?> message) {
+		MessageHeaders headers = message.getHeaders();
+		Object offsetHeader = headers.get(KafkaHeaders.OFFSET);
+		if (headers.get(KafkaHeaders.ACKNOWLEDGMENT) == null || !(offsetHeader instanceof Long)) {
+			return;
+		}
+		PendingOffsets pendingOffsets = this.partitions.get(partition(headers));
+		if (pendingOffsets != null) {
+			pendingOffsets.evict((Long) offsetHeader);
+		}
+	}
+
+	/**
+	 * Forget the pending records of the revoked partitions: the writes still in progress for them
+	 * are no longer acknowledged.
+	 * @param partitions the revoked partitions.
+	 */
+	void revoke(Collection<TopicPartition> partitions) {
+		for (TopicPartition partition : partitions) {
+			PendingOffsets pendingOffsets = this.partitions.remove(partition.topic() + "-" + partition.partition());
+			if (pendingOffsets != null) {
+				pendingOffsets.clear();
+			}
+		}
+	}
+
+	private static String partition(MessageHeaders headers) {
+		return headers.get(KafkaHeaders.RECEIVED_TOPIC) + "-" + headers.get(KafkaHeaders.RECEIVED_PARTITION_ID);
+	}
+
+	/**
+	 * The offsets of a partition whose writes have been started, in offset order.
+	 */
+	private static final class PendingOffsets {
+
+		private final TreeMap<Long, Acknowledgment> pending = new TreeMap<>();
+
+		private final Set<Long> completed = new HashSet<>();
+
+		synchronized void add(long offset, Acknowledgment acknowledgment) {
+			this.pending.put(offset, acknowledgment);
+			this.completed.remove(offset);
+		}
+
+		void complete(long offset) {
+			resolve(offset, true);
+		}
+
+		void evict(long offset) {
+			resolve(offset, false);
+		}
+
+		synchronized void clear() {
+			this.pending.clear();
+			this.completed.clear();
+		}
+
+		/**
+		 * Complete or evict the offset, then acknowledge the highest offset up to which
+		 * all the pending ones are completed, if any.
+		 */
+		private void resolve(long offset, boolean completed) {
+			Acknowledgment acknowledgment = null;
+			synchronized (this) {
+				if (!this.pending.containsKey(offset)) {
+					return;
+				}
+				if (completed) {
+					this.completed.add(offset);
+				}
+				else {
+					this.pending.remove(offset);
+					this.completed.remove(offset);
+				}
+				while (!this.pending.isEmpty() && this.completed.remove(this.pending.firstKey())) {
+					acknowledgment = this.pending.pollFirstEntry().getValue();
+				}
+			}
+			if (acknowledgment != null) {
+				acknowledgment.acknowledge();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.sink;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteConcernException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import org.bson.BsonInvalidOperationException;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonParseException;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.util.Assert;
+
+/**
+ * Classifies the write failures of the sink handlers, retries the transient ones with an
+ * exponential back off and sends the messages of the other ones to a dead letter channel,
+ * with the failure in the {@link MongoDbStoringMessageHandler#ERROR_TYPE},
+ * {@link MongoDbStoringMessageHandler#ERROR_CODE} and {@link MongoDbStoringMessageHandler#ERROR_MESSAGE}
+ * headers. Without a dead letter channel, the failures are rethrown.
+ * <p>
+ * The write errors of a bulk operation are classified one by one: only the failed writes are
+ * retried or dead-lettered, along with the writes an ordered bulk operation did not execute.
+ * Without a dead letter channel, a bulk operation failure is rethrown as an
+ * {@link UnappliedWritesException} carrying these writes only.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+class WriteFailureHandler {
+
+	private static final Set<Integer> DUPLICATE_KEY_CODES = codes(11000, 11001, 12582);
+
+	private static final Set<Integer> VALIDATION_CODES = codes(2, 9, 14, 52, 55, 56, 57, 121, 10334);
+
+	private static final Set<Integer> TRANSIENT_CODES =
+			codes(6, 7, 50, 64, 89, 91, 112, 189, 262, 9001, 10107, 11600, 11602, 13435, 13436);
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteFailureHandler.class);
+
+	private final int maxAttempts;
+
+	private final long initialInterval;
+
+	private final double multiplier;
+
+	private final long maxInterval;
+
+	private final MessageChannel deadLetterChannel;
+
+	WriteFailureHandler(int maxAttempts, long initialInterval, double multiplier, long maxInterval,
+			MessageChannel deadLetterChannel) {
+
+		Assert.isTrue(maxAttempts > 0, "'maxAttempts' must be greater than 0");
+		this.maxAttempts = maxAttempts;
+		this.initialInterval = initialInterval;
+		this.multiplier = multiplier;
+		this.maxInterval = maxInterval;
+		this.deadLetterChannel = deadLetterChannel;
+	}
+
+	/**
+	 * Run the write, retrying it on transient failures.
+	 * @param message the message of the write.
+	 * @param write the write.
+	 */
+	void execute(Message<?> message, Runnable write) {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				write.run();
+				return;
+			}
+			catch (RuntimeException e) {
+				FailureType failureType = classify(e);
+				if (failureType != FailureType.TRANSIENT || attempt >= this.maxAttempts) {
+					deadLetter(Collections.singletonList(message), failureType, errorCode(e), e.getMessage(), e);
+					return;
+				}
+				backOff(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Run the bulk operation of the writes, retrying the writes which failed transiently
+	 * and the ones an ordered bulk operation did not execute after a failure.
+	 * @throws UnappliedWritesException without a dead letter channel, when writes failed
+	 * otherwise or ran out of attempts.
+	 * @param writes the writes.
+	 * @param bulkWrite the bulk operation of the provided writes.
+	 * @param ordered whether the bulk operation is ordered.
+	 * @param messages the messages of a write.
+	 * @param <W> the write type.
+	 */
+	<W> void executeBulk(List<W> writes, Consumer<List<W>> bulkWrite, boolean ordered,
+			Function<W, List<Message<?>>> messages) {
+
+		List<W> pending = writes;
+		for (int attempt = 1; !pending.isEmpty(); attempt++) {
+			try {
+				bulkWrite.accept(pending);
+				return;
+			}
+			catch (RuntimeException e) {
+				pending = handleBulkFailure(e, pending, attempt, ordered, messages);
+				if (!pending.isEmpty()) {
+					backOff(attempt);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dead-letter the writes of a failed bulk operation which are not to be retried.
+	 * @return the writes to retry.
+	 * @throws UnappliedWritesException without a dead letter channel, when writes are not to be retried.
+	 */
+	<W> List<W> handleBulkFailure(Throwable failure, List<W> writes, int attempt, boolean ordered,
+			Function<W, List<Message<?>>> messages) {
+
+		List<BulkWriteError> errors = writeErrors(failure);
+		if (errors.isEmpty()) {
+			FailureType failureType = classify(failure);
+			if (failureType == FailureType.TRANSIENT && attempt < this.maxAttempts) {
+				return writes;
+			}
+			if (this.deadLetterChannel == null) {
+				throw new UnappliedWritesException(failure, writes, Collections.emptyList());
+			}
+			List<Message<?>> failed = new ArrayList<>();
+			writes.forEach(write -> failed.addAll(messages.apply(write)));
+			deadLetter(failed, failureType, errorCode(failure), failure.getMessage(), failure);
+			return Collections.emptyList();
+		}
+		List<W> retries = new ArrayList<>();
+		List<W> failed = new ArrayList<>();
+		boolean givenUp = false;
+		for (BulkWriteError error : errors) {
+			W write = writes.get(error.getIndex());
+			failed.add(write);
+			FailureType failureType = classify(error.getCode());
+			if (failureType == FailureType.TRANSIENT && attempt < this.maxAttempts) {
+				retries.add(write);
+			}
+			else if (this.deadLetterChannel == null) {
+				givenUp = true;
+			}
+			else {
+				deadLetter(messages.apply(write), failureType, error.getCode(), error.getMessage(), failure);
+			}
+		}
+		List<W> unexecuted = ordered
+				? writes.subList(errors.get(errors.size() - 1).getIndex() + 1, writes.size())
+				: Collections.emptyList();
+		if (givenUp) {
+			throw new UnappliedWritesException(failure, failed, unexecuted);
+		}
+		retries.addAll(unexecuted);
+		return retries;
+	}
+
+	/**
+	 * The {@code retryWhen} companion of a reactive write, retrying the transient failures.
+	 */
+	Publisher<?> retryTransient(Flux<Throwable> failures) {
+		return failures.index().concatMap(failure -> {
+			int attempt = failure.getT1().intValue() + 1;
+			if (classify(failure.getT2()) == FailureType.TRANSIENT && attempt < this.maxAttempts) {
+				return Mono.delay(Duration.ofMillis(backOffInterval(attempt)));
+			}
+			return Mono.<Long>error(failure.getT2());
+		});
+	}
+
+	/**
+	 * Send the message of a failed write to the dead letter channel, or rethrow the failure.
+	 */
+	void deadLetter(Message<?> message, Throwable failure) {
+		deadLetter(Collections.singletonList(message), classify(failure), errorCode(failure), failure.getMessage(),
+				failure);
+	}
+
+	private void deadLetter(List<Message<?>> messages, FailureType failureType, Integer errorCode,
+			String errorMessage, Throwable failure) {
+
+		if (this.deadLetterChannel == null) {
+			throw failure instanceof RuntimeException
+					? (RuntimeException) failure
+					: new IllegalStateException(failure);
+		}
+		for (Message<?> message : messages) {
+			logger.warn("Dead-lettering a message whose write failed with a '" + failureType.getHeaderValue()
+					+ "' error: " + errorMessage);
+			this.deadLetterChannel.send(MessageBuilder.withPayload(deadLetterPayload(message.getPayload()))
+					.copyHeaders(message.getHeaders())
+					.removeHeaders(KafkaHeaders.ACKNOWLEDGMENT, KafkaHeaders.CONSUMER)
+					.setHeader(MongoDbStoringMessageHandler.ERROR_TYPE, failureType.getHeaderValue())
+					.setHeader(MongoDbStoringMessageHandler.ERROR_CODE, errorCode)
+					.setHeader(MongoDbStoringMessageHandler.ERROR_MESSAGE, errorMessage)
+					.build());
+		}
+	}
+
+	private void backOff(int attempt) {
+		try {
+			Thread.sleep(backOffInterval(attempt));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while backing off a write retry", e);
+		}
+	}
+
+	long backOffInterval(int attempt) {
+		return (long) Math.min(this.initialInterval * Math.pow(this.multiplier, attempt - 1), this.maxInterval);
+	}
+
+	/**
+	 * The BSON payloads are sent as JSON, the others as is.
+	 */
+	private static Object deadLetterPayload(Object payload) {
+		if (payload instanceof RawBsonDocument) {
+			return ((RawBsonDocument) payload).toJson();
+		}
+		if (payload instanceof Document) {
+			return ((Document) payload).toJson();
+		}
+		return payload;
+	}
+
+	static FailureType classify(Throwable failure) {
+		Integer errorCode = errorCode(failure);
+		if (errorCode != null) {
+			FailureType failureType = classify(errorCode);
+			if (failureType != FailureType.PERMANENT) {
+				return failureType;
+			}
+		}
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof DuplicateKeyException) {
+				return FailureType.DUPLICATE_KEY;
+			}
+			if (cause instanceof JsonParseException || cause instanceof BsonInvalidOperationException) {
+				return FailureType.VALIDATION;
+			}
+			if (cause instanceof MongoSocketException || cause instanceof MongoTimeoutException
+					|| cause instanceof MongoNotPrimaryException || cause instanceof MongoNodeIsRecoveringException
+					|| cause instanceof TransientDataAccessException
+					|| cause instanceof DataAccessResourceFailureException
+					|| (cause instanceof MongoException
+							&& ((MongoException) cause).hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL))) {
+				return FailureType.TRANSIENT;
+			}
+		}
+		return FailureType.PERMANENT;
+	}
+
+	static FailureType classify(int errorCode) {
+		if (DUPLICATE_KEY_CODES.contains(errorCode)) {
+			return FailureType.DUPLICATE_KEY;
+		}
+		if (VALIDATION_CODES.contains(errorCode)) {
+			return FailureType.VALIDATION;
+		}
+		if (TRANSIENT_CODES.contains(errorCode)) {
+			return FailureType.TRANSIENT;
+		}
+		return FailureType.PERMANENT;
+	}
+
+	/**
+	 * @return the server error code of the failure, or {@code null} if there is none.
+	 */
+	static Integer errorCode(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof MongoBulkWriteException) {
+				MongoBulkWriteException bulkWriteException = (MongoBulkWriteException) cause;
+				if (!bulkWriteException.getWriteErrors().isEmpty()) {
+					return bulkWriteException.getWriteErrors().get(0).getCode();
+				}
+				if (bulkWriteException.getWriteConcernError() != null) {
+					return bulkWriteException.getWriteConcernError().getCode();
+				}
+			}
+			if (cause instanceof MongoWriteException) {
+				return ((MongoWriteException) cause).getError().getCode();
+			}
+			if (cause instanceof MongoWriteConcernException) {
+				return ((MongoWriteConcernException) cause).getWriteConcernError().getCode();
+			}
+			if (cause instanceof MongoException && ((MongoException) cause).getCode() > 0) {
+				return ((MongoException) cause).getCode();
+			}
+		}
+		return null;
+	}
+
+	private static List<BulkWriteError> writeErrors(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof MongoBulkWriteException) {
+				return ((MongoBulkWriteException) cause).getWriteErrors();
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	private static Set<Integer> codes(Integer... codes) {
+		return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(codes)));
+	}
+
+	/**
+	 * The failure of a bulk operation without a dead letter channel, carrying the writes which were
+	 * not applied: the failed ones and the ones an ordered bulk operation did not execute after them.
+	 * The other writes of the bulk operation have succeeded.
+	 */
+	static final class UnappliedWritesException extends RuntimeException {
+
+		private final List<?> failed;
+
+		private final List<?> unexecuted;
+
+		UnappliedWritesException(Throwable failure, List<?> failed, List<?> unexecuted) {
+			super(failure.getMessage(), failure);
+			this.failed = failed;
+			this.unexecuted = unexecuted;
+		}
+
+		/**
+		 * @return the failed writes, in order.
+		 */
+		@SuppressWarnings("unchecked")
+		<W> List<W> getFailed() {
+			return (List<W>) this.failed;
+		}
+
+		/**
+		 * @return the writes an ordered bulk operation did not execute after the failed one, in order.
+		 */
+		@SuppressWarnings("unchecked")
+		<W> List<W> getUnexecuted() {
+			return (List<W>) this.unexecuted;
+		}
+
+	}
+
+	/**
+	 * The classes of write failures.
+	 */
+	enum FailureType {
+
+		/**
+		 * A unique index violation; retrying the write would fail the same way.
+		 */
+		DUPLICATE_KEY("duplicate-key"),
+
+		/**
+		 * A document which cannot be parsed or is rejected by the server, e.g. by the collection validator.
+		 */
+		VALIDATION("validation"),
+
+		/**
+		 * A network error, a timeout or a replica set election; the write may succeed when retried.
+		 */
+		TRANSIENT("transient"),
+
+		/**
+		 * Any other failure.
+		 */
+		PERMANENT("permanent");
+
+		private final String headerValue;
+
+		FailureType(String headerValue) {
+			this.headerValue = headerValue;
+		}
+
+		String getHeaderValue() {
+			return this.headerValue;
+		}
+
+	}
+
+}
@@ -17,15 +17,28 @@
 package org.springframework.cloud.stream.app.mongodb.sink;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.common.TopicPartition;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonParseException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -36,16 +49,26 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.boot.test.autoconfigure.data.mongo.AutoConfigureDataMongo;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cloud.stream.app.mongodb.common.MongoDbClientMetrics;
+import org.springframework.cloud.stream.binding.BinderAwareChannelResolver;
 import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.cloud.stream.test.binder.MessageCollector;
 import org.springframework.context.annotation.Bean;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.integration.mongodb.store.MessageDocument;
 import org.springframework.integration.mongodb.support.BinaryToMessageConverter;
 import org.springframework.integration.mongodb.support.MessageToBinaryConverter;
 import org.springframework.integration.support.MessageBuilder;
 import org.springframework.integration.support.MutableMessageBuilder;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.MessagingException;
 import org.springframework.messaging.support.GenericMessage;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.TestPropertySource;
@@ -72,6 +95,9 @@ public abstract class MongoDbSinkApplicationTests {
 	@Autowired
 	protected MongoDbSinkProperties mongoDbSinkProperties;
 
+	@Autowired
+	protected MeterRegistry meterRegistry;
+
 	@TestPropertySource(properties = {"mongodb.collection=testing","mongodb.queryfieldname=uniqueId"})
 	static public class CollectionNameTests extends MongoDbSinkApplicationTests {
 
@@ -200,6 +226,768 @@ public abstract class MongoDbSinkApplicationTests {
 
 	}
 
+	@TestPropertySource(properties = {"mongodb.collection=batching", "mongodb.queryfieldname=uniqueId",
+			"mongodb.batch-size=3", "mongodb.batch-timeout=100"})
+	static public class BatchTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Map<String, Object> updateHeaders = new HashMap<>();
+			updateHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "U");
+			Map<String, Object> deleteHeaders = new HashMap<>();
+			deleteHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "D");
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2, \"my_data\": \"THE DATA\"}"));
+
+			assertEquals(0, this.mongoTemplate.findAll(Document.class, "batching").size());
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"updated\"}", updateHeaders));
+
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "batching");
+			assertEquals(2, result.size());
+			assertEquals("updated", result.get(0).get("my_data"));
+			assertEquals("THE DATA", result.get(1).get("my_data"));
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2}", deleteHeaders));
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (this.mongoTemplate.findAll(Document.class, "batching").size() != 1
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			result = this.mongoTemplate.findAll(Document.class, "batching");
+			assertEquals(1, result.size());
+			assertEquals(1, result.get(0).get("uniqueId"));
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=batch-replaces", "mongodb.batch-size=2",
+			"mongodb.batch-timeout=10000"})
+	static public class BatchReplaceTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			this.sink.input().send(new GenericMessage<>("{\"_id\": 1, \"a\": 1, \"b\": 1}"));
+			this.sink.input().send(new GenericMessage<>("{\"_id\": 1, \"a\": 2}"));
+
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "batch-replaces");
+			assertEquals(1, result.size());
+			assertEquals(2, result.get(0).get("a"));
+			assertNull(result.get(0).get("b"));
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=batch-failures", "mongodb.batch-size=3",
+			"mongodb.batch-timeout=100", "mongodb.retry-max-attempts=2"})
+	static public class BatchFailureTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			this.mongoTemplate.indexOps("batch-failures").ensureIndex(new Index("uniqueId", Sort.Direction.ASC).unique());
+			this.mongoTemplate.insert(new Document("uniqueId", 2), "batch-failures");
+
+			List<Long> acknowledged = new CopyOnWriteArrayList<>();
+			this.sink.input().send(AcknowledgmentFailureTests.record("{\"uniqueId\": 1}", 0, acknowledged));
+			this.sink.input().send(AcknowledgmentFailureTests.record("{\"uniqueId\": 2}", 1, acknowledged));
+			// the duplicate key failure of the flush is not rethrown
+			this.sink.input().send(AcknowledgmentFailureTests.record("{\"uniqueId\": 3}", 2, acknowledged));
+
+			// the applied insert is acknowledged, the failed one and the one after it are requeued
+			assertTrue(acknowledged.contains(0L));
+			assertFalse(acknowledged.contains(2L));
+			assertEquals(2, this.mongoTemplate.findAll(Document.class, "batch-failures").size());
+
+			// the failed insert is given up with the second flush, then the next one is written
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!acknowledged.contains(2L) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertTrue(acknowledged.contains(1L));
+			assertTrue(acknowledged.contains(2L));
+			assertEquals(3, this.mongoTemplate.findAll(Document.class, "batch-failures").size());
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=adaptive", "mongodb.batch-size=50",
+			"mongodb.batch-timeout=100", "mongodb.batch-target-latency=1000"})
+	static public class AdaptiveBatchTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			for (int i = 0; i < 500; i++) {
+				this.sink.input().send(new GenericMessage<>("{\"uniqueId\": " + i + "}"));
+			}
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (this.mongoTemplate.findAll(Document.class, "adaptive").size() != 500
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertEquals(500, this.mongoTemplate.findAll(Document.class, "adaptive").size());
+			assertNotNull(this.meterRegistry.find(MongoDbSinkMetrics.BATCH_LIMIT).gauge());
+		}
+
+	}
+
+	static public class AdaptiveBatchSizerTests {
+
+		private static final long TARGET_LATENCY = TimeUnit.MILLISECONDS.toNanos(100);
+
+		private final AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(100, 64, 1000);
+
+		@Test
+		public void testShrinksAboveTarget() {
+			recordWindow(TARGET_LATENCY / 10, 64, TARGET_LATENCY + 1);
+			assertEquals(32, this.batchSizer.size());
+			assertEquals(500, this.batchSizer.timeout());
+
+			recordWindow(TARGET_LATENCY / 10, 32, TARGET_LATENCY * 2);
+			assertEquals(16, this.batchSizer.size());
+		}
+
+		@Test
+		public void testGrowsUnderBacklog() {
+			recordWindow(TARGET_LATENCY / 10, 64, TARGET_LATENCY * 2);
+			assertEquals(32, this.batchSizer.size());
+
+			recordWindow(TARGET_LATENCY / 10, 32, TARGET_LATENCY / 2);
+			assertEquals(40, this.batchSizer.size());
+		}
+
+		@Test
+		public void testHoldsWithoutBacklog() {
+			recordWindow(TARGET_LATENCY / 10, 64, TARGET_LATENCY * 2);
+			assertEquals(32, this.batchSizer.size());
+
+			recordWindow(TARGET_LATENCY / 10, 10, TARGET_LATENCY / 2);
+			assertEquals(32, this.batchSizer.size());
+		}
+
+		@Test
+		public void testHoldsNearTarget() {
+			recordWindow(TARGET_LATENCY / 10, 64, TARGET_LATENCY * 2);
+			recordWindow(TARGET_LATENCY / 10, 32, TARGET_LATENCY * 9 / 10);
+			assertEquals(32, this.batchSizer.size());
+		}
+
+		@Test
+		public void testBounds() {
+			recordWindow(TARGET_LATENCY / 10, 64, TARGET_LATENCY / 10);
+			assertEquals(64, this.batchSizer.size());
+
+			for (int i = 0; i < 10; i++) {
+				recordWindow(TARGET_LATENCY * 2, 64, TARGET_LATENCY * 2);
+			}
+			assertEquals(1, this.batchSizer.size());
+			assertEquals(15, this.batchSizer.timeout());
+		}
+
+		/**
+		 * Record a full window of bulk writes of the given size, the last one with a different latency.
+		 */
+		private void recordWindow(long latency, int writes, long lastLatency) {
+			for (int i = 1; i < AdaptiveBatchSizer.WINDOW; i++) {
+				this.batchSizer.record(latency, writes);
+			}
+			this.batchSizer.record(lastLatency, writes);
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=coalescing", "mongodb.queryfieldname=uniqueId",
+			"mongodb.batch-size=6", "mongodb.batch-timeout=10000", "mongodb.batch-coalesce=true"})
+	static public class BatchCoalesceTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			Map<String, Object> updateHeaders = new HashMap<>();
+			updateHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "U");
+			Map<String, Object> deleteHeaders = new HashMap<>();
+			deleteHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "D");
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"a\": 0}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"a\": 1, \"b\": 1}", updateHeaders));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"a\": 2}", updateHeaders));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2, \"a\": 0}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2}", deleteHeaders));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 3, \"a\": 0}"));
+
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "coalescing");
+			assertEquals(2, result.size());
+			assertEquals(1, result.get(0).get("uniqueId"));
+			assertEquals(2, result.get(0).get("a"));
+			assertEquals(1, result.get(0).get("b"));
+			assertEquals(3, result.get(1).get("uniqueId"));
+			assertEquals(4.0, this.meterRegistry.get(MongoDbSinkMetrics.BATCH_SIZE)
+					.tag("collection", "coalescing")
+					.summary()
+					.totalAmount(), 0);
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=upserts", "mongodb.queryfieldname=uniqueId",
+			"mongodb.upsert=true"})
+	static public class UpsertTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			Map<String, Object> updateHeaders = new HashMap<>();
+			updateHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "U");
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(MessageBuilder.withPayload("{\"uniqueId\": 1, \"other\": \"replaced\"}".getBytes())
+					.setHeader(MessageHeaders.CONTENT_TYPE, "application/json")
+					.build());
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2, \"my_data\": \"created\"}", updateHeaders));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2, \"my_data\": \"created\"}", updateHeaders));
+
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "upserts");
+			assertEquals(2, result.size());
+			assertEquals(1, result.get(0).get("uniqueId"));
+			assertNull(result.get(0).get("my_data"));
+			assertEquals("replaced", result.get(0).get("other"));
+			assertEquals(2, result.get(1).get("uniqueId"));
+			assertEquals("created", result.get(1).get("my_data"));
+
+			// the inserts are recorded as replacements
+			assertEquals(1.0, this.meterRegistry.get(MongoDbSinkMetrics.DOCUMENTS)
+					.tags("collection", "upserts", "operation", "replace", "result", "upserted")
+					.counter().count(), 0);
+			assertEquals(2.0, this.meterRegistry.get(MongoDbSinkMetrics.DOCUMENTS)
+					.tags("collection", "upserts", "operation", "replace", "result", "matched")
+					.counter().count(), 0);
+			assertNull(this.meterRegistry.find(MongoDbSinkMetrics.DOCUMENTS)
+					.tags("collection", "upserts", "operation", "insert")
+					.counter());
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=lists", "mongodb.queryfieldname=uniqueId"})
+	static public class ListPayloadTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			this.sink.input().send(MessageBuilder.withPayload(Arrays.asList(
+					"{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}".getBytes(),
+					"{\"uniqueId\": 2, \"my_data\": \"THE DATA\"}".getBytes(),
+					"{\"uniqueId\": 3, \"my_data\": \"THE DATA\"}".getBytes()))
+					.setHeader(MessageHeaders.CONTENT_TYPE, "application/json")
+					.build());
+			this.sink.input().send(MessageBuilder.withPayload(Arrays.asList(
+					"{\"uniqueId\": 1, \"my_data\": \"updated\"}",
+					"{\"uniqueId\": 2}",
+					"{\"uniqueId\": 4, \"my_data\": \"THE DATA\"}"))
+					.setHeader(MongoDbStoringMessageHandler.OPERATION_TYPE, Arrays.asList("U", "D", "I"))
+					.build());
+
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "lists");
+			assertEquals(3, result.size());
+			assertEquals(1, result.get(0).get("uniqueId"));
+			assertEquals("updated", result.get(0).get("my_data"));
+			assertEquals(3, result.get(1).get("uniqueId"));
+			assertEquals(4, result.get(2).get("uniqueId"));
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=write-concerns", "mongodb.queryfieldname=uniqueId",
+			"mongodb.write-concern.w=1", "mongodb.write-concern.journal=false",
+			"mongodb.delete-write-concern.wtimeout=5000"})
+	static public class WriteConcernTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			assertEquals("1", this.mongoDbSinkProperties.getWriteConcern().getW());
+			assertEquals(Long.valueOf(5000), this.mongoDbSinkProperties.getDeleteWriteConcern().getWtimeout());
+			assertNull(this.mongoDbSinkProperties.getDeleteWriteConcern().getW());
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(MessageBuilder.withPayload("{\"uniqueId\": 1}")
+					.setHeader(MongoDbStoringMessageHandler.OPERATION_TYPE, "D")
+					.build());
+
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "write-concerns");
+			assertEquals(1, result.size());
+			assertEquals(2, result.get(0).get("uniqueId"));
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=write-concern-overrides", "mongodb.queryfieldname=uniqueId",
+			"mongodb.delete-write-concern.w=2"})
+	static public class WriteConcernOverrideTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2, \"my_data\": \"THE DATA\"}"));
+
+			// the standalone server cannot satisfy w:2, so the deletes of the sink fail
+			try {
+				this.sink.input().send(MessageBuilder.withPayload("{\"uniqueId\": 1}")
+						.setHeader(MongoDbStoringMessageHandler.OPERATION_TYPE, "D")
+						.build());
+			}
+			catch (MessagingException e) {
+				// no dead letter channel, the failure is rethrown
+			}
+			assertEquals(2, this.mongoTemplate.findAll(Document.class, "write-concern-overrides").size());
+
+			// the bulk writes use the sink write concern
+			this.sink.input().send(MessageBuilder.withPayload(Arrays.asList("{\"uniqueId\": 1}"))
+					.setHeader(MongoDbStoringMessageHandler.OPERATION_TYPE, "D")
+					.build());
+			assertEquals(1, this.mongoTemplate.findAll(Document.class, "write-concern-overrides").size());
+
+			// the shared template is left untouched
+			this.mongoTemplate.remove(new Query(), "write-concern-overrides");
+			assertEquals(0, this.mongoTemplate.findAll(Document.class, "write-concern-overrides").size());
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=workers", "mongodb.queryfieldname=uniqueId",
+			"mongodb.workers=4"})
+	static public class WorkersTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Map<String, Object> updateHeaders = new HashMap<>();
+			updateHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "U");
+
+			for (int i = 0; i < 10; i++) {
+				this.sink.input().send(new GenericMessage<>("{\"uniqueId\": " + i + ", \"version\": 0}"));
+			}
+			for (int version = 1; version <= 5; version++) {
+				for (int i = 0; i < 10; i++) {
+					this.sink.input().send(new GenericMessage<>(
+							"{\"uniqueId\": " + i + ", \"version\": " + version + "}", updateHeaders));
+				}
+			}
+
+			long deadline = System.currentTimeMillis() + 10000;
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "workers");
+			while ((result.size() != 10
+					|| result.stream().anyMatch(document -> !Integer.valueOf(5).equals(document.get("version"))))
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+				result = this.mongoTemplate.findAll(Document.class, "workers");
+			}
+			assertEquals(10, result.size());
+			for (Document document : result) {
+				assertEquals(5, document.get("version"));
+			}
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=map-workers", "mongodb.queryfieldname=uniqueId",
+			"mongodb.workers=4", "mongodb.worker-shutdown-timeout=5000"})
+	static public class WorkersMapPayloadTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			assertEquals(5000, this.mongoDbSinkProperties.getWorkerShutdownTimeout());
+
+			Map<String, Object> updateHeaders = new HashMap<>();
+			updateHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "U");
+
+			// the Map payloads are partitioned by their key like the JSON ones, so their writes stay in order
+			for (int i = 0; i < 10; i++) {
+				this.sink.input().send(new GenericMessage<>(document(i, 0)));
+			}
+			for (int version = 1; version <= 5; version++) {
+				for (int i = 0; i < 10; i++) {
+					this.sink.input().send(new GenericMessage<>(document(i, version), updateHeaders));
+				}
+			}
+
+			long deadline = System.currentTimeMillis() + 10000;
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "map-workers");
+			while ((result.size() != 10
+					|| result.stream().anyMatch(document -> !Integer.valueOf(5).equals(document.get("version"))))
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+				result = this.mongoTemplate.findAll(Document.class, "map-workers");
+			}
+			assertEquals(10, result.size());
+			for (Document document : result) {
+				assertEquals(5, document.get("version"));
+			}
+		}
+
+		private static Map<String, Object> document(int uniqueId, int version) {
+			Map<String, Object> document = new HashMap<>();
+			document.put("uniqueId", uniqueId);
+			document.put("version", version);
+			return document;
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=acknowledgments", "mongodb.queryfieldname=uniqueId",
+			"mongodb.workers=4"})
+	static public class AcknowledgmentTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			List<Long> acknowledged = new CopyOnWriteArrayList<>();
+			for (long offset = 0; offset < 10; offset++) {
+				long recordOffset = offset;
+				this.sink.input().send(MessageBuilder.withPayload("{\"uniqueId\": " + offset + "}")
+						.setHeader(KafkaHeaders.ACKNOWLEDGMENT,
+								(Acknowledgment) () -> acknowledged.add(recordOffset))
+						.setHeader(KafkaHeaders.RECEIVED_TOPIC, "input")
+						.setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, 0)
+						.setHeader(KafkaHeaders.OFFSET, offset)
+						.build());
+			}
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!acknowledged.contains(9L) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertTrue(acknowledged.contains(9L));
+			assertEquals(10, this.mongoTemplate.findAll(Document.class, "acknowledgments").size());
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=unacknowledged", "mongodb.queryfieldname=uniqueId"})
+	static public class AcknowledgmentFailureTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			this.mongoTemplate.indexOps("unacknowledged").ensureIndex(new Index("uniqueId", Sort.Direction.ASC).unique());
+
+			List<Long> acknowledged = new CopyOnWriteArrayList<>();
+			this.sink.input().send(record("{\"uniqueId\": 1}", 0, acknowledged));
+			try {
+				this.sink.input().send(record("{\"uniqueId\": 1}", 1, acknowledged));
+			}
+			catch (MessagingException e) {
+				// no dead letter channel, the duplicate key failure is rethrown
+			}
+			this.sink.input().send(record("{\"uniqueId\": 2}", 2, acknowledged));
+
+			// the rethrown failure does not hold back the following record
+			assertTrue(acknowledged.contains(0L));
+			assertFalse(acknowledged.contains(1L));
+			assertTrue(acknowledged.contains(2L));
+			assertEquals(2, this.mongoTemplate.findAll(Document.class, "unacknowledged").size());
+		}
+
+		static Message<?> record(String payload, long offset, List<Long> acknowledged) {
+			return MessageBuilder.withPayload(payload)
+					.setHeader(KafkaHeaders.ACKNOWLEDGMENT, (Acknowledgment) () -> acknowledged.add(offset))
+					.setHeader(KafkaHeaders.RECEIVED_TOPIC, "input")
+					.setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, 0)
+					.setHeader(KafkaHeaders.OFFSET, offset)
+					.build();
+		}
+
+	}
+
+	static public class WriteAcknowledgerTests {
+
+		private final WriteAcknowledger acknowledger = new WriteAcknowledger();
+
+		private final List<Long> acknowledged = new ArrayList<>();
+
+		@Test
+		public void testFailureInTheMiddle() {
+			List<Runnable> acknowledgments = new ArrayList<>();
+			for (long offset = 0; offset < 5; offset++) {
+				acknowledgments.add(this.acknowledger.register(record(0, offset)));
+			}
+
+			acknowledgments.get(3).run();
+			acknowledgments.get(0).run();
+			assertEquals(Collections.singletonList(0L), this.acknowledged);
+
+			// the write of the offset 2 completes, but the one of the offset 1 is given up
+			acknowledgments.get(2).run();
+			this.acknowledger.evict(record(0, 1));
+			assertEquals(Arrays.asList(0L, 3L), this.acknowledged);
+
+			acknowledgments.get(4).run();
+			assertEquals(Arrays.asList(0L, 3L, 4L), this.acknowledged);
+		}
+
+		@Test
+		public void testRevokedPartition() {
+			Runnable revoked = this.acknowledger.register(record(0, 3));
+			Runnable retained = this.acknowledger.register(record(1, 3));
+
+			this.acknowledger.revoke(Collections.singletonList(new TopicPartition("input", 0)));
+			revoked.run();
+			retained.run();
+			assertEquals(Collections.singletonList(3L), this.acknowledged);
+
+			// once reassigned, the partition is not held back by its stale offset
+			this.acknowledger.register(record(0, 5)).run();
+			assertEquals(Arrays.asList(3L, 5L), this.acknowledged);
+		}
+
+		private Message<?> record(int partition, long offset) {
+			return MessageBuilder.withPayload("{}")
+					.setHeader(KafkaHeaders.ACKNOWLEDGMENT, (Acknowledgment) () -> this.acknowledged.add(offset))
+					.setHeader(KafkaHeaders.RECEIVED_TOPIC, "input")
+					.setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, partition)
+					.setHeader(KafkaHeaders.OFFSET, offset)
+					.build();
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=dead-letters", "mongodb.queryfieldname=uniqueId",
+			"mongodb.dead-letter-destination=mongodb-errors"})
+	static public class DeadLetterTests extends MongoDbSinkApplicationTests {
+
+		@Autowired
+		private BinderAwareChannelResolver channelResolver;
+
+		@Autowired
+		private MessageCollector messageCollector;
+
+		@Test
+		public void test() throws InterruptedException {
+			this.mongoTemplate.indexOps("dead-letters").ensureIndex(new Index("uniqueId", Sort.Direction.ASC).unique());
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"DUPLICATE\"}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2, \"my_data\": \"THE DATA\"}"));
+
+			Message<?> deadLetter = this.messageCollector
+					.forChannel(this.channelResolver.resolveDestination("mongodb-errors"))
+					.poll(10, TimeUnit.SECONDS);
+			assertNotNull(deadLetter);
+			assertEquals("duplicate-key", deadLetter.getHeaders().get(MongoDbStoringMessageHandler.ERROR_TYPE));
+			assertEquals(11000, deadLetter.getHeaders().get(MongoDbStoringMessageHandler.ERROR_CODE));
+			Object payload = deadLetter.getPayload();
+			assertTrue((payload instanceof byte[] ? new String((byte[]) payload) : payload.toString())
+					.contains("DUPLICATE"));
+			assertEquals(2, this.mongoTemplate.findAll(Document.class, "dead-letters").size());
+
+			// the JSON rejected by the channel interceptor is dead-lettered by the handler
+			this.sink.input().send(MessageBuilder.withPayload("{\"uniqueId\": 3} x".getBytes(StandardCharsets.UTF_8))
+					.setHeader(MessageHeaders.CONTENT_TYPE, "application/json")
+					.build());
+			deadLetter = this.messageCollector
+					.forChannel(this.channelResolver.resolveDestination("mongodb-errors"))
+					.poll(10, TimeUnit.SECONDS);
+			assertNotNull(deadLetter);
+			assertEquals("validation", deadLetter.getHeaders().get(MongoDbStoringMessageHandler.ERROR_TYPE));
+			assertEquals(2, this.mongoTemplate.findAll(Document.class, "dead-letters").size());
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=pools", "mongodb.pool.max-size=8",
+			"mongodb.pool.wait-queue-multiple=2", "mongodb.pool.max-wait-time=5000"})
+	static public class ConnectionPoolTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			assertEquals(Integer.valueOf(8), this.mongoDbSinkProperties.getPool().getMaxSize());
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+
+			assertEquals(1, this.mongoTemplate.findAll(Document.class, "pools").size());
+			assertEquals(8.0, this.meterRegistry.get(MongoDbClientMetrics.POOL_MAX_SIZE)
+					.tag("client", MongoDbClientConfiguration.BLOCKING_CLIENT)
+					.gauge().value(), 0);
+			assertEquals(8.0, this.meterRegistry.get(MongoDbClientMetrics.POOL_MAX_SIZE)
+					.tag("client", MongoDbClientConfiguration.REACTIVE_CLIENT)
+					.gauge().value(), 0);
+			assertEquals(0.0, this.meterRegistry.get(MongoDbClientMetrics.POOL_WAIT_QUEUE_SIZE)
+					.tag("client", MongoDbClientConfiguration.BLOCKING_CLIENT)
+					.gauge().value(), 0);
+			assertTrue(this.meterRegistry.get(MongoDbClientMetrics.COMMANDS)
+					.tag("client", MongoDbClientConfiguration.BLOCKING_CLIENT)
+					.tag("command", "insert")
+					.tag("status", "SUCCESS")
+					.timer().count() > 0);
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=reactive", "mongodb.queryfieldname=uniqueId",
+			"mongodb.reactive=true", "mongodb.max-in-flight=1"})
+	static public class ReactiveTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Map<String, Object> updateHeaders = new HashMap<>();
+			updateHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "U");
+
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(MessageBuilder.withPayload("{\"uniqueId\": 2, \"my_data\": \"THE DATA\"}".getBytes())
+					.setHeader(MessageHeaders.CONTENT_TYPE, "application/json")
+					.build());
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"updated\"}", updateHeaders));
+
+			long deadline = System.currentTimeMillis() + 10000;
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "reactive");
+			while ((result.size() != 2 || !"updated".equals(result.get(0).get("my_data")))
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+				result = this.mongoTemplate.findAll(Document.class, "reactive");
+			}
+			assertEquals(2, result.size());
+			assertEquals("updated", result.get(0).get("my_data"));
+			assertEquals("THE DATA", result.get(1).get("my_data"));
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=bson", "mongodb.queryfieldname=uniqueId"})
+	static public class BsonPayloadTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			RawBsonDocument bson = RawBsonDocument.parse("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}");
+			byte[] bytes = new byte[bson.getByteBuffer().remaining()];
+			bson.getByteBuffer().get(bytes);
+			this.sink.input().send(MessageBuilder.withPayload(bytes)
+					.setHeader(MessageHeaders.CONTENT_TYPE, "application/bson")
+					.build());
+			this.sink.input().send(MessageBuilder.withPayload("{\"uniqueId\": 1, \"my_data\": \"updated\"}".getBytes())
+					.setHeader(MessageHeaders.CONTENT_TYPE, "application/json")
+					.setHeader(MongoDbStoringMessageHandler.OPERATION_TYPE, "U")
+					.build());
+
+			List<Document> result = this.mongoTemplate.findAll(Document.class, "bson");
+			assertEquals(1, result.size());
+			assertEquals(1, result.get(0).get("uniqueId"));
+			assertEquals("updated", result.get(0).get("my_data"));
+			assertNull(result.get(0).get("_class"));
+		}
+
+	}
+
+	static public class JsonBytesToBsonEncoderTests {
+
+		private final JsonBytesToBsonEncoder encoder = new JsonBytesToBsonEncoder();
+
+		@Test
+		public void testPlainObject() {
+			String json = "{\"a\": 1, \"b\": 3000000000, \"c\": 1.5, \"d\": [true, null, \"x\"], \"e\": {\"f\": \"g\"}}";
+			assertEquals(BsonDocument.parse(json), this.encoder.encode(json.getBytes(StandardCharsets.UTF_8)));
+		}
+
+		@Test
+		public void testTrailingWhitespace() {
+			assertEquals(BsonDocument.parse("{\"a\": 1}"),
+					this.encoder.encode("{\"a\": 1}\n ".getBytes(StandardCharsets.UTF_8)));
+		}
+
+		@Test
+		public void testExtendedJson() {
+			assertNull(this.encoder.encode("{\"a\": {\"$oid\": \"5c8f0b4e1c9d440000a1b2c3\"}}"
+					.getBytes(StandardCharsets.UTF_8)));
+		}
+
+		@Test
+		public void testMalformedJson() {
+			assertNull(this.encoder.encode("{\"a\": 1".getBytes(StandardCharsets.UTF_8)));
+		}
+
+		@Test(expected = JsonParseException.class)
+		public void testTrailingObject() {
+			this.encoder.encode("{\"a\": 1} {\"b\": 2}".getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Test(expected = JsonParseException.class)
+		public void testTrailingGarbage() {
+			this.encoder.encode("{\"a\": 1} x".getBytes(StandardCharsets.UTF_8));
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=metrics", "mongodb.queryfieldname=uniqueId"})
+	static public class MetricsTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"THE DATA\"}"));
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 2, \"my_data\": \"THE DATA\"}"));
+
+			Map<String, Object> updateHeaders = new HashMap<>();
+			updateHeaders.put(MongoDbStoringMessageHandler.OPERATION_TYPE, "U");
+			this.sink.input().send(new GenericMessage<>("{\"uniqueId\": 1, \"my_data\": \"updated\"}", updateHeaders));
+
+			assertEquals(2, this.meterRegistry.get(MongoDbSinkMetrics.DOCUMENTS)
+					.tags("collection", "metrics", "operation", "insert", "result", "inserted")
+					.counter().count(), 0);
+			assertEquals(1, this.meterRegistry.get(MongoDbSinkMetrics.DOCUMENTS)
+					.tags("collection", "metrics", "operation", "update", "result", "modified")
+					.counter().count(), 0);
+			assertEquals(1, this.meterRegistry.get(MongoDbSinkMetrics.WRITES)
+					.tags("collection", "metrics", "operation", "update", "outcome", "success")
+					.timer().count());
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=metrics-default", "mongodb.collection-header=collection",
+			"mongodb.metrics-max-collections=1"})
+	static public class MetricsMaxCollectionsTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			this.sink.input().send(new GenericMessage<>("{\"my_data\": \"default\"}"));
+			for (int i = 0; i < 3; i++) {
+				this.sink.input().send(MessageBuilder.withPayload("{\"my_data\": \"routed\"}")
+						.setHeader("collection", "metrics-routed-" + i)
+						.build());
+			}
+
+			assertEquals(1, this.meterRegistry.get(MongoDbSinkMetrics.DOCUMENTS)
+					.tags("collection", "metrics-default", "operation", "insert", "result", "inserted")
+					.counter().count(), 0);
+			assertEquals(3, this.meterRegistry.get(MongoDbSinkMetrics.DOCUMENTS)
+					.tags("collection", MongoDbSinkMetrics.OTHER_COLLECTION, "operation", "insert", "result", "inserted")
+					.counter().count(), 0);
+			assertNull(this.meterRegistry.find(MongoDbSinkMetrics.DOCUMENTS)
+					.tag("collection", "metrics-routed-0")
+					.counter());
+		}
+
+	}
+
+	@TestPropertySource(properties = {"mongodb.collection=routing-default", "mongodb.collection-header=collection"})
+	static public class CollectionHeaderTests extends MongoDbSinkApplicationTests {
+
+		@Test
+		public void test() {
+			this.sink.input().send(MessageBuilder.withPayload("{\"my_data\": \"routed\"}")
+					.setHeader("collection", "routing-header")
+					.build());
+			this.sink.input().send(MessageBuilder.withPayload("{\"my_data\": \"routed bytes\"}")
+					.setHeader("collection", "routing-header".getBytes())
+					.build());
+			this.sink.input().send(new GenericMessage<>("{\"my_data\": \"default\"}"));
+
+			List<Document> routed = this.mongoTemplate.findAll(Document.class, "routing-header");
+			assertEquals(2, routed.size());
+			assertEquals("routed", routed.get(0).get("my_data"));
+			assertEquals("routed bytes", routed.get(1).get("my_data"));
+			List<Document> defaulted = this.mongoTemplate.findAll(Document.class, "routing-default");
+			assertEquals(1, defaulted.size());
+			assertEquals("default", defaulted.get(0).get("my_data"));
+		}
+
+	}
+
 	@TestPropertySource(properties = "mongodb.collection-expression=headers.collection")
 	static public class CollectionExpressionStoreMessageTests extends MongoDbSinkApplicationTests {
 
@@ -236,6 +1024,11 @@ public abstract class MongoDbSinkApplicationTests {
 			return new MongoCustomConversions(customConverters);
 		}
 
+		@Bean
+		public MeterRegistry meterRegistry() {
+			return new SimpleMeterRegistry();
+		}
+
 	}
 
 }
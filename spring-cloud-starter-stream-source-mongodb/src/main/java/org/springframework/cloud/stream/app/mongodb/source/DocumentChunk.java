@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.source;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.util.Assert;
+
+/**
+ * Accumulates the documents emitted by the source into the payload of a single message:
+ * the JSON {@code String}s as newline delimited JSON, the raw BSON {@code byte[]}s as a
+ * sequence of BSON documents, i.e. the format of the {@code mongodump} files.
+ * <p>
+ * A chunk is full once it holds the max number of documents; a document which would take it
+ * over the max number of bytes starts the next one, unless the chunk is empty, so a document
+ * larger than the limit still gets emitted, alone.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+class DocumentChunk {
+
+	/**
+	 * The content type of the chunks of JSON documents.
+	 */
+	static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+	private static final byte NEWLINE = '\n';
+
+	private final int maxSize;
+
+	private final int maxBytes;
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+	private int size;
+
+	/**
+	 * @param maxSize the max number of documents.
+	 * @param maxBytes the max number of bytes, {@code 0} for no limit.
+	 */
+	DocumentChunk(int maxSize, int maxBytes) {
+		Assert.isTrue(maxSize > 0, "'maxSize' must be greater than 0");
+		Assert.isTrue(maxBytes >= 0, "'maxBytes' must not be negative");
+		this.maxSize = maxSize;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param rawBson whether the documents are raw BSON {@code byte[]}s.
+	 * @return the content type of the chunks.
+	 */
+	static String contentType(boolean rawBson) {
+		return rawBson ? RawBsonPayloads.CONTENT_TYPE : NDJSON_CONTENT_TYPE;
+	}
+
+	/**
+	 * @param document the JSON {@code String} or the raw BSON {@code byte[]} of a document.
+	 * @return the bytes of the document in the chunk.
+	 */
+	static byte[] encode(Object document) {
+		if (document instanceof byte[]) {
+			return (byte[]) document;
+		}
+		byte[] json = ((String) document).getBytes(StandardCharsets.UTF_8);
+		byte[] line = new byte[json.length + 1];
+		System.arraycopy(json, 0, line, 0, json.length);
+		line[json.length] = NEWLINE;
+		return line;
+	}
+
+	/**
+	 * @param document the encoded document.
+	 * @return whether the document can be added without exceeding the max number of bytes.
+	 */
+	boolean fits(byte[] document) {
+		return this.size == 0 || this.maxBytes == 0 || this.bytes.size() + document.length <= this.maxBytes;
+	}
+
+	/**
+	 * @param document the encoded document.
+	 */
+	void add(byte[] document) {
+		this.bytes.write(document, 0, document.length);
+		this.size++;
+	}
+
+	boolean isFull() {
+		return this.size >= this.maxSize;
+	}
+
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * @return the payload of the documents added so far; the chunk is then empty.
+	 */
+	byte[] drain() {
+		byte[] payload = this.bytes.toByteArray();
+		this.bytes.reset();
+		this.size = 0;
+		return payload;
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.source;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCursor;
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.integration.endpoint.AbstractMessageSource;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link AbstractMessageSource} which runs an aggregation pipeline against the collection
+ * on every poll and produces the resulting documents as a {@code List} of JSON {@code String}s,
+ * so the filtering, the reshaping and the pre-aggregation of the data happen on the server.
+ * <p>
+ * In the {@link #setStream(boolean) stream} mode, the results are not materialized in a list;
+ * the payload is a {@link CloseableIterator} over the aggregation cursor, so a downstream splitter
+ * emits them as they are fetched, one {@link #setBatchSize(int) batch} at a time.
+ * <p>
+ * In the {@link #setRawBson(boolean) raw BSON} mode, the results are produced as the BSON
+ * {@code byte[]}s read from the wire, with an {@code application/bson} content type.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class MongodbAggregationMessageSource extends AbstractMessageSource<Object> {
+
+	private final MongoOperations mongoOperations;
+
+	private final List<Bson> pipeline;
+
+	private final String collectionName;
+
+	private boolean allowDiskUse;
+
+	private long maxTime;
+
+	private boolean stream;
+
+	private boolean rawBson;
+
+	private int batchSize;
+
+	/**
+	 * Create an instance for the pipeline and the collection.
+	 *
+	 * @param mongoOperations the {@link MongoOperations} to obtain the collection from.
+	 * @param pipeline the aggregation pipeline stages, as a JSON array,
+	 * e.g. {@code [{ $match: { status: 'A' } }, { $group: { _id: '$customer', total: { $sum: '$amount' } } }]}.
+	 * @param collectionName the collection name.
+	 */
+	public MongodbAggregationMessageSource(MongoOperations mongoOperations, String pipeline,
+			String collectionName) {
+
+		Assert.notNull(mongoOperations, "'mongoOperations' must not be null");
+		Assert.hasText(pipeline, "'pipeline' must not be empty");
+		Assert.hasText(collectionName, "'collectionName' must not be empty");
+		this.mongoOperations = mongoOperations;
+		this.collectionName = collectionName;
+		List<Bson> stages = new ArrayList<>();
+		for (BsonValue stage : BsonArray.parse(pipeline)) {
+			stages.add(stage.asDocument());
+		}
+		this.pipeline = stages;
+	}
+
+	/**
+	 * Set whether the stages may write temporary data to disk when they exceed the memory limit.
+	 *
+	 * @param allowDiskUse the allow disk use flag.
+	 */
+	public void setAllowDiskUse(boolean allowDiskUse) {
+		this.allowDiskUse = allowDiskUse;
+	}
+
+	/**
+	 * Set the max time in milliseconds the server may spend on the aggregation;
+	 * {@code 0} (default) means no limit.
+	 *
+	 * @param maxTime the max time.
+	 */
+	public void setMaxTime(long maxTime) {
+		Assert.isTrue(maxTime >= 0, "'maxTime' must not be negative");
+		this.maxTime = maxTime;
+	}
+
+	/**
+	 * Set whether to produce a {@link CloseableIterator} over the aggregation cursor instead of a {@code List}.
+	 *
+	 * @param stream the stream flag.
+	 */
+	public void setStream(boolean stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * Set whether to produce the BSON {@code byte[]}s of the results instead of their JSON.
+	 *
+	 * @param rawBson the raw BSON flag.
+	 */
+	public void setRawBson(boolean rawBson) {
+		this.rawBson = rawBson;
+	}
+
+	/**
+	 * Set the number of documents fetched from the server per cursor batch;
+	 * {@code 0} (default) means the driver default.
+	 *
+	 * @param batchSize the batch size.
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize >= 0, "'batchSize' must not be negative");
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public String getComponentType() {
+		return "mongo:aggregation-inbound-channel-adapter";
+	}
+
+	@Override
+	protected Object doReceive() {
+		AggregateIterable<RawBsonDocument> aggregation = this.mongoOperations.getCollection(this.collectionName)
+				.aggregate(this.pipeline, RawBsonDocument.class)
+				.allowDiskUse(this.allowDiskUse);
+		if (this.maxTime > 0) {
+			aggregation.maxTime(this.maxTime, TimeUnit.MILLISECONDS);
+		}
+		if (this.batchSize > 0) {
+			aggregation.batchSize(this.batchSize);
+		}
+		MongoCursor<RawBsonDocument> cursor = aggregation.iterator();
+		if (!cursor.hasNext()) {
+			cursor.close();
+			return null;
+		}
+		Object payload;
+		if (this.stream) {
+			payload = new DocumentIterator(cursor);
+		}
+		else {
+			List<Object> documents = new ArrayList<>();
+			try {
+				while (cursor.hasNext()) {
+					documents.add(render(cursor.next()));
+				}
+			}
+			finally {
+				cursor.close();
+			}
+			payload = documents;
+		}
+		if (!this.rawBson) {
+			return payload;
+		}
+		return getMessageBuilderFactory()
+				.withPayload(payload)
+				.setHeader(MessageHeaders.CONTENT_TYPE, RawBsonPayloads.CONTENT_TYPE)
+				.build();
+	}
+
+	private Object render(RawBsonDocument document) {
+		return this.rawBson ? RawBsonPayloads.bytes(document) : document.toJson();
+	}
+
+	/**
+	 * Renders the documents of the cursor while they are iterated.
+	 */
+	private final class DocumentIterator implements CloseableIterator<Object> {
+
+		private final MongoCursor<RawBsonDocument> cursor;
+
+		DocumentIterator(MongoCursor<RawBsonDocument> cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.cursor.hasNext();
+		}
+
+		@Override
+		public Object next() {
+			return render(this.cursor.next());
+		}
+
+		@Override
+		public void close() {
+			this.cursor.close();
+		}
+
+	}
+
+}
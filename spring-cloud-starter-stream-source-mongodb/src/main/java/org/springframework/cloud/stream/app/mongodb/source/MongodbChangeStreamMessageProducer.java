@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.source;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.integration.endpoint.MessageProducerSupport;
+import org.springframework.integration.metadata.MetadataStore;
+import org.springframework.integration.support.AbstractIntegrationMessageBuilder;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * A {@link MessageProducerSupport} which tails a MongoDB change stream and emits
+ * a message for every change event, instead of re-running a query on every poll.
+ * <p>
+ * The payload is the JSON of the full document when it is available
+ * (see {@link #setFullDocument(FullDocument)}), or of the document key otherwise.
+ * The last processed resume token is persisted in the provided {@link MetadataStore},
+ * so the stream resumes where it stopped after a restart or a lost connection.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class MongodbChangeStreamMessageProducer extends MessageProducerSupport {
+
+	/**
+	 * The header for the change event operation type, e.g. {@code insert}, {@code update} or {@code delete}.
+	 */
+	public static final String OPERATION_TYPE_HEADER = "mongodb_operationType";
+
+	/**
+	 * The header for the collection the change event has been emitted for.
+	 */
+	public static final String COLLECTION_HEADER = "mongodb_collection";
+
+	private final MongoOperations mongoOperations;
+
+	private final String collection;
+
+	private final MetadataStore metadataStore;
+
+	private List<Bson> pipeline = Collections.emptyList();
+
+	private FullDocument fullDocument = FullDocument.DEFAULT;
+
+	private String resumeTokenKey;
+
+	private long resumeTokenPersistInterval = 1000;
+
+	private long maxAwaitTime = 1000;
+
+	private long recoveryInterval = 5000;
+
+	private Executor taskExecutor = new SimpleAsyncTaskExecutor("mongodb-change-stream-");
+
+	private volatile boolean active;
+
+	private volatile BsonDocument resumeToken;
+
+	private volatile BsonDocument persistedResumeToken;
+
+	private long lastPersistTime;
+
+	/**
+	 * Create an instance for the given collection.
+	 *
+	 * @param mongoOperations the {@link MongoOperations} to obtain the collection from.
+	 * @param collection the collection to watch.
+	 * @param metadataStore the {@link MetadataStore} to persist resume tokens.
+	 */
+	public MongodbChangeStreamMessageProducer(MongoOperations mongoOperations, String collection,
+			MetadataStore metadataStore) {
+
+		Assert.notNull(mongoOperations, "'mongoOperations' must not be null");
+		Assert.hasText(collection, "'collection' must not be empty");
+		Assert.notNull(metadataStore, "'metadataStore' must not be null");
+		this.mongoOperations = mongoOperations;
+		this.collection = collection;
+		this.metadataStore = metadataStore;
+		this.resumeTokenKey = "mongodb.change-stream." + collection;
+	}
+
+	/**
+	 * Set the aggregation pipeline stages applied on the server side to the change events,
+	 * as a JSON array, e.g. {@code [{ $match: { operationType: 'insert' } }]}.
+	 *
+	 * @param pipeline the JSON pipeline.
+	 */
+	public void setPipeline(String pipeline) {
+		if (!StringUtils.hasText(pipeline)) {
+			this.pipeline = Collections.emptyList();
+			return;
+		}
+		List<Bson> stages = new ArrayList<>();
+		for (BsonValue stage : BsonArray.parse(pipeline)) {
+			stages.add(stage.asDocument());
+		}
+		this.pipeline = stages;
+	}
+
+	/**
+	 * Set the {@link FullDocument} option; {@link FullDocument#UPDATE_LOOKUP} returns
+	 * the current state of the document for update events as well.
+	 *
+	 * @param fullDocument the full document option.
+	 */
+	public void setFullDocument(FullDocument fullDocument) {
+		Assert.notNull(fullDocument, "'fullDocument' must not be null");
+		this.fullDocument = fullDocument;
+	}
+
+	/**
+	 * Set the {@link MetadataStore} key for the resume token.
+	 * Defaults to {@code mongodb.change-stream.<collection>}.
+	 *
+	 * @param resumeTokenKey the key.
+	 */
+	public void setResumeTokenKey(String resumeTokenKey) {
+		Assert.hasText(resumeTokenKey, "'resumeTokenKey' must not be empty");
+		this.resumeTokenKey = resumeTokenKey;
+	}
+
+	/**
+	 * Set how often, in milliseconds, the last resume token is persisted.
+	 * A value of {@code 0} persists the token after every change event.
+	 * Defaults to {@code 1000}.
+	 *
+	 * @param resumeTokenPersistInterval the interval.
+	 */
+	public void setResumeTokenPersistInterval(long resumeTokenPersistInterval) {
+		this.resumeTokenPersistInterval = resumeTokenPersistInterval;
+	}
+
+	/**
+	 * Set the max time in milliseconds the server waits for new change events
+	 * before returning an empty batch. Defaults to {@code 1000}.
+	 *
+	 * @param maxAwaitTime the max await time.
+	 */
+	public void setMaxAwaitTime(long maxAwaitTime) {
+		this.maxAwaitTime = maxAwaitTime;
+	}
+
+	/**
+	 * Set the time in milliseconds to wait before reopening the change stream after an error.
+	 * Defaults to {@code 5000}.
+	 *
+	 * @param recoveryInterval the recovery interval.
+	 */
+	public void setRecoveryInterval(long recoveryInterval) {
+		this.recoveryInterval = recoveryInterval;
+	}
+
+	/**
+	 * Set the {@link Executor} to run the change stream cursor loop.
+	 *
+	 * @param taskExecutor the executor.
+	 */
+	public void setTaskExecutor(Executor taskExecutor) {
+		Assert.notNull(taskExecutor, "'taskExecutor' must not be null");
+		this.taskExecutor = taskExecutor;
+	}
+
+	@Override
+	public String getComponentType() {
+		return "mongo:change-stream-inbound-channel-adapter";
+	}
+
+	@Override
+	protected void doStart() {
+		String token = this.metadataStore.get(this.resumeTokenKey);
+		if (token != null) {
+			this.resumeToken = BsonDocument.parse(token);
+			this.persistedResumeToken = this.resumeToken;
+		}
+		this.active = true;
+		this.taskExecutor.execute(this::watch);
+	}
+
+	@Override
+	protected void doStop() {
+		this.active = false;
+	}
+
+	private void watch() {
+		while (this.active) {
+			try (MongoCursor<ChangeStreamDocument<Document>> cursor = openCursor()) {
+				while (this.active) {
+					ChangeStreamDocument<Document> change = cursor.tryNext();
+					if (change != null && !processChange(change)) {
+						break;
+					}
+					persistResumeToken(false);
+				}
+			}
+			catch (Exception e) {
+				if (this.active) {
+					logger.error("The change stream for the '" + this.collection
+							+ "' collection failed; reopening in " + this.recoveryInterval + "ms", e);
+					try {
+						Thread.sleep(this.recoveryInterval);
+					}
+					catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						this.active = false;
+					}
+				}
+			}
+		}
+		persistResumeToken(true);
+	}
+
+	private MongoCursor<ChangeStreamDocument<Document>> openCursor() {
+		ChangeStreamIterable<Document> changeStream =
+				this.mongoOperations.getCollection(this.collection)
+						.watch(this.pipeline)
+						.fullDocument(this.fullDocument)
+						.maxAwaitTime(this.maxAwaitTime, TimeUnit.MILLISECONDS);
+		if (this.resumeToken != null) {
+			changeStream.resumeAfter(this.resumeToken);
+		}
+		return changeStream.iterator();
+	}
+
+	private boolean processChange(ChangeStreamDocument<Document> change) {
+		OperationType operationType = change.getOperationType();
+		if (OperationType.INVALIDATE.equals(operationType)) {
+			logger.warn("The change stream for the '" + this.collection
+					+ "' collection has been invalidated; restarting from the current point in time");
+			this.resumeToken = null;
+			this.persistedResumeToken = null;
+			this.metadataStore.remove(this.resumeTokenKey);
+			return false;
+		}
+		String payload = change.getFullDocument() != null
+				? change.getFullDocument().toJson()
+				: change.getDocumentKey() != null ? change.getDocumentKey().toJson() : null;
+		if (payload != null) {
+			AbstractIntegrationMessageBuilder<String> builder = getMessageBuilderFactory()
+					.withPayload(payload)
+					.setHeader(OPERATION_TYPE_HEADER, operationType.getValue())
+					.setHeader(COLLECTION_HEADER, this.collection);
+			sendMessage(builder.build());
+		}
+		this.resumeToken = change.getResumeToken();
+		return true;
+	}
+
+	private void persistResumeToken(boolean force) {
+		BsonDocument token = this.resumeToken;
+		if (token == null || token.equals(this.persistedResumeToken)) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (force || now - this.lastPersistTime >= this.resumeTokenPersistInterval) {
+			this.metadataStore.put(this.resumeTokenKey, token.toJson());
+			this.persistedResumeToken = token;
+			this.lastPersistTime = now;
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.source;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.integration.splitter.AbstractMessageSplitter;
+import org.springframework.integration.support.AbstractIntegrationMessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.Assert;
+
+/**
+ * A splitter of the documents produced by the source, i.e. a {@code List} or an {@code Iterator}
+ * of JSON {@code String}s or raw BSON {@code byte[]}s, into chunks of up to
+ * {@link #MongodbChunkingSplitter(int, int, boolean) maxSize} documents, instead of a message
+ * per document, so the throughput is not dominated by the per message overhead of the binder.
+ * <p>
+ * A chunk is the {@code byte[]} of its documents as newline delimited JSON
+ * ({@code application/x-ndjson}) or as a sequence of BSON documents ({@code application/bson}),
+ * bounded by a max number of bytes. The chunks are assembled lazily, so an {@code Iterator}
+ * over a cursor is only read one chunk at a time.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class MongodbChunkingSplitter extends AbstractMessageSplitter {
+
+	private final int maxSize;
+
+	private final int maxBytes;
+
+	private final String contentType;
+
+	/**
+	 * Create an instance for the given chunk bounds.
+	 *
+	 * @param maxSize the max number of documents per chunk.
+	 * @param maxBytes the max number of bytes per chunk, {@code 0} for no limit.
+	 * @param rawBson whether the documents are raw BSON {@code byte[]}s.
+	 */
+	public MongodbChunkingSplitter(int maxSize, int maxBytes, boolean rawBson) {
+		Assert.isTrue(maxSize > 0, "'maxSize' must be greater than 0");
+		Assert.isTrue(maxBytes >= 0, "'maxBytes' must not be negative");
+		this.maxSize = maxSize;
+		this.maxBytes = maxBytes;
+		this.contentType = DocumentChunk.contentType(rawBson);
+	}
+
+	@Override
+	protected Object splitMessage(Message<?> message) {
+		Object payload = message.getPayload();
+		Iterator<?> documents = payload instanceof Iterable
+				? ((Iterable<?>) payload).iterator()
+				: (Iterator<?>) payload;
+		return new ChunkIterator(documents);
+	}
+
+	/**
+	 * Assembles the next chunk from the documents on demand,
+	 * holding back the document which did not fit the previous one.
+	 */
+	private final class ChunkIterator implements CloseableIterator<AbstractIntegrationMessageBuilder<byte[]>> {
+
+		private final Iterator<?> documents;
+
+		private final DocumentChunk chunk = new DocumentChunk(MongodbChunkingSplitter.this.maxSize,
+				MongodbChunkingSplitter.this.maxBytes);
+
+		private byte[] pending;
+
+		ChunkIterator(Iterator<?> documents) {
+			this.documents = documents;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.pending != null || this.documents.hasNext();
+		}
+
+		@Override
+		public AbstractIntegrationMessageBuilder<byte[]> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			while (!this.chunk.isFull() && (this.pending != null || this.documents.hasNext())) {
+				byte[] document = this.pending;
+				if (document == null) {
+					document = DocumentChunk.encode(this.documents.next());
+				}
+				this.pending = null;
+				if (!this.chunk.fits(document)) {
+					this.pending = document;
+					break;
+				}
+				this.chunk.add(document);
+			}
+			return getMessageBuilderFactory()
+					.withPayload(this.chunk.drain())
+					.setHeader(MessageHeaders.CONTENT_TYPE, MongodbChunkingSplitter.this.contentType);
+		}
+
+		@Override
+		public void close() {
+			if (this.documents instanceof Closeable) {
+				try {
+					((Closeable) this.documents).close();
+				}
+				catch (IOException e) {
+					logger.debug("Failed to close the documents iterator", e);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.source;
+
+import com.mongodb.MongoClientOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.stream.app.mongodb.common.MongoDbClientMetrics;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Customizes the Boot auto-configured {@code MongoClient} of the source: sizes its connection
+ * pool with the 'pool' properties and instruments it with the {@link MongoDbClientMetrics}.
+ * The unset properties keep the driver defaults, and the options of the 'spring.data.mongodb.uri',
+ * if any, take precedence.
+ * <p>
+ * Kept apart from the {@link MongodbSourceConfiguration}, which depends on the client.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+@Configuration
+public class MongodbClientConfiguration {
+
+	private final MongodbSourceProperties properties;
+
+	private final MeterRegistry meterRegistry;
+
+	public MongodbClientConfiguration(MongodbSourceProperties properties,
+			ObjectProvider<MeterRegistry> meterRegistry) {
+
+		this.properties = properties;
+		this.meterRegistry = meterRegistry.getIfAvailable(() -> Metrics.globalRegistry);
+	}
+
+	@Bean
+	public MongoClientOptions mongoClientOptions() {
+		MongodbSourceProperties.Pool pool = this.properties.getPool();
+		MongoClientOptions.Builder options = MongoClientOptions.builder();
+		if (pool.getMaxSize() != null) {
+			options.connectionsPerHost(pool.getMaxSize());
+		}
+		if (pool.getMinSize() != null) {
+			options.minConnectionsPerHost(pool.getMinSize());
+		}
+		if (pool.getMaxWaitTime() != null) {
+			options.maxWaitTime(pool.getMaxWaitTime().intValue());
+		}
+		if (pool.getWaitQueueMultiple() != null) {
+			options.threadsAllowedToBlockForConnectionMultiplier(pool.getWaitQueueMultiple());
+		}
+		if (pool.getMaxConnectionIdleTime() != null) {
+			options.maxConnectionIdleTime(pool.getMaxConnectionIdleTime().intValue());
+		}
+		if (pool.getMaxConnectionLifeTime() != null) {
+			options.maxConnectionLifeTime(pool.getMaxConnectionLifeTime().intValue());
+		}
+		MongoDbClientMetrics clientMetrics = new MongoDbClientMetrics(this.meterRegistry, "source");
+		return options.addConnectionPoolListener(clientMetrics)
+				.addCommandListener(clientMetrics)
+				.build();
+	}
+
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.source;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.expression.Expression;
+import org.springframework.expression.TypeLocator;
+import org.springframework.expression.spel.support.StandardTypeLocator;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.acks.AcknowledgmentCallback;
+import org.springframework.integration.endpoint.AbstractMessageSource;
+import org.springframework.integration.metadata.MetadataStore;
+import org.springframework.integration.metadata.SimpleMetadataStore;
+import org.springframework.integration.support.AbstractIntegrationMessageBuilder;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link AbstractMessageSource} which runs the query against the collection on every poll
+ * and produces the matching documents as a {@code List} of JSON {@code String}s.
+ * <p>
+ * When an {@link #setIncrementalField(String) incremental field} is configured, only the
+ * documents after the last emitted one (the high-water mark) are fetched, sorted by this field
+ * and the {@code _id} and limited to the {@link #setLimit(int) limit}. The high-water mark is
+ * the pair of the field and {@code _id} values of the last document, so the documents sharing
+ * a value of a non-unique field, e.g. an {@code updatedAt} timestamp, are not skipped when the
+ * limit falls between them. The high-water mark is only advanced (and persisted in the
+ * {@link MetadataStore}) when the produced message has been sent successfully, via an
+ * {@link AcknowledgmentCallback}. The field must therefore increase monotonically, e.g. an
+ * {@code ObjectId} {@code _id} or an {@code updatedAt} timestamp.
+ * <p>
+ * In the incremental mode, the query must not have a top level condition on the field, nor a sort,
+ * and its projection must not exclude the {@code _id}; the high-water mark criteria is added
+ * under an {@code $and} when the query already has an {@code $or}.
+ * <p>
+ * In the {@link #setStream(boolean) stream} mode, the documents are not materialized in a list;
+ * the payload is a {@link CloseableIterator} over the query cursor, so a downstream splitter
+ * emits them as they are fetched, one {@link #setBatchSize(int) batch} at a time.
+ * <p>
+ * The {@link #setFieldsExpression(Expression) fields expression}, if any, is applied as the
+ * projection of the query, so only the selected fields are fetched and rendered as JSON.
+ * <p>
+ * In the {@link #setRawBson(boolean) raw BSON} mode, the documents are produced as the BSON
+ * {@code byte[]}s read from the wire, with an {@code application/bson} content type, instead of
+ * being decoded and rendered as JSON.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class MongodbQueryMessageSource extends AbstractMessageSource<Object> {
+
+	private static final String HIGH_WATER_MARK = "value";
+
+	private static final String ID = "_id";
+
+	private final MongoOperations mongoOperations;
+
+	private final Expression queryExpression;
+
+	private final String collectionName;
+
+	private Expression fieldsExpression;
+
+	private String incrementalField;
+
+	private int limit;
+
+	private boolean stream;
+
+	private boolean rawBson;
+
+	private int batchSize;
+
+	private MetadataStore metadataStore = new SimpleMetadataStore();
+
+	private String metadataKey;
+
+	private volatile Document highWaterMark;
+
+	/**
+	 * Create an instance for the query expression and the collection.
+	 * The expression can evaluate to a JSON query {@code String} or a {@link Query}.
+	 *
+	 * @param mongoOperations the {@link MongoOperations} to run the query.
+	 * @param queryExpression the query expression.
+	 * @param collectionName the collection name.
+	 */
+	public MongodbQueryMessageSource(MongoOperations mongoOperations, Expression queryExpression,
+			String collectionName) {
+
+		Assert.notNull(mongoOperations, "'mongoOperations' must not be null");
+		Assert.notNull(queryExpression, "'queryExpression' must not be null");
+		Assert.hasText(collectionName, "'collectionName' must not be empty");
+		this.mongoOperations = mongoOperations;
+		this.queryExpression = queryExpression;
+		this.collectionName = collectionName;
+		this.metadataKey = "mongodb.incremental." + collectionName;
+	}
+
+	/**
+	 * Set the expression of the fields to fetch, evaluating to a JSON projection {@code String},
+	 * e.g. <code>{ name: 1, address: 1 }</code>.
+	 * A projection for a {@link Query} may only include or exclude fields.
+	 *
+	 * @param fieldsExpression the fields expression.
+	 */
+	public void setFieldsExpression(Expression fieldsExpression) {
+		this.fieldsExpression = fieldsExpression;
+	}
+
+	/**
+	 * Set the monotonic field to fetch the documents incrementally by.
+	 *
+	 * @param incrementalField the field name.
+	 */
+	public void setIncrementalField(String incrementalField) {
+		this.incrementalField = incrementalField;
+	}
+
+	/**
+	 * Set the max number of documents fetched per poll; {@code 0} (default) means no limit.
+	 *
+	 * @param limit the limit.
+	 */
+	public void setLimit(int limit) {
+		Assert.isTrue(limit >= 0, "'limit' must not be negative");
+		this.limit = limit;
+	}
+
+	/**
+	 * Set whether to produce a {@link CloseableIterator} over the query cursor instead of a {@code List}.
+	 *
+	 * @param stream the stream flag.
+	 */
+	public void setStream(boolean stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * Set whether to produce the BSON {@code byte[]}s of the documents instead of their JSON.
+	 *
+	 * @param rawBson the raw BSON flag.
+	 */
+	public void setRawBson(boolean rawBson) {
+		this.rawBson = rawBson;
+	}
+
+	/**
+	 * Set the number of documents fetched from the server per cursor batch;
+	 * {@code 0} (default) means the driver default.
+	 *
+	 * @param batchSize the batch size.
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize >= 0, "'batchSize' must not be negative");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set the {@link MetadataStore} to persist the high-water mark in.
+	 * Defaults to an in-memory {@link SimpleMetadataStore}.
+	 *
+	 * @param metadataStore the metadata store.
+	 */
+	public void setMetadataStore(MetadataStore metadataStore) {
+		Assert.notNull(metadataStore, "'metadataStore' must not be null");
+		this.metadataStore = metadataStore;
+	}
+
+	/**
+	 * Set the {@link MetadataStore} key for the high-water mark.
+	 * Defaults to {@code mongodb.incremental.<collection>}.
+	 *
+	 * @param metadataKey the key.
+	 */
+	public void setMetadataKey(String metadataKey) {
+		Assert.hasText(metadataKey, "'metadataKey' must not be empty");
+		this.metadataKey = metadataKey;
+	}
+
+	@Override
+	public String getComponentType() {
+		return "mongo:inbound-channel-adapter";
+	}
+
+	@Override
+	protected void onInit() {
+		TypeLocator typeLocator = getEvaluationContext().getTypeLocator();
+		if (typeLocator instanceof StandardTypeLocator) {
+			((StandardTypeLocator) typeLocator).registerImport(Query.class.getPackage().getName());
+		}
+		if (this.incrementalField != null) {
+			String value = this.metadataStore.get(this.metadataKey);
+			if (value != null) {
+				this.highWaterMark = Document.parse(value);
+			}
+		}
+	}
+
+	@Override
+	protected Object doReceive() {
+		Query query = buildQuery();
+		if (this.rawBson) {
+			return receiveRawBson(query);
+		}
+		if (this.stream) {
+			return streamDocuments(query);
+		}
+		List<Document> documents = this.mongoOperations.find(query, Document.class, this.collectionName);
+		if (documents.isEmpty()) {
+			return null;
+		}
+		List<String> payload = new ArrayList<>(documents.size());
+		for (Document document : documents) {
+			payload.add(document.toJson());
+		}
+		if (this.incrementalField == null) {
+			return payload;
+		}
+		Document highWaterMark = highWaterMark(documents.get(documents.size() - 1));
+		return withHighWaterMarkCallback(payload, () -> highWaterMark);
+	}
+
+	private Object streamDocuments(Query query) {
+		CloseableIterator<Document> cursor = this.mongoOperations.stream(query, Document.class, this.collectionName);
+		if (!cursor.hasNext()) {
+			cursor.close();
+			return null;
+		}
+		JsonDocumentIterator payload = new JsonDocumentIterator(cursor);
+		if (this.incrementalField == null) {
+			return payload;
+		}
+		return withHighWaterMarkCallback(payload, payload::getHighWaterMark);
+	}
+
+	/**
+	 * Run the query with the driver, since the template decodes the documents,
+	 * and produce them as they come from the wire.
+	 */
+	private Object receiveRawBson(Query query) {
+		FindIterable<RawBsonDocument> find = this.mongoOperations.getCollection(this.collectionName)
+				.withDocumentClass(RawBsonDocument.class)
+				.find(query.getQueryObject())
+				.projection(query.getFieldsObject())
+				.sort(query.getSortObject())
+				.skip((int) query.getSkip())
+				.limit(query.getLimit());
+		if (this.batchSize > 0) {
+			find.batchSize(this.batchSize);
+		}
+		MongoCursor<RawBsonDocument> cursor = find.iterator();
+		if (!cursor.hasNext()) {
+			cursor.close();
+			return null;
+		}
+		if (this.stream) {
+			RawBsonDocumentIterator payload = new RawBsonDocumentIterator(cursor);
+			return rawBsonMessage(payload, payload::getHighWaterMark);
+		}
+		List<byte[]> payload = new ArrayList<>();
+		RawBsonDocument last = null;
+		try {
+			while (cursor.hasNext()) {
+				last = cursor.next();
+				payload.add(RawBsonPayloads.bytes(last));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		RawBsonDocument lastDocument = last;
+		return rawBsonMessage(payload, () -> highWaterMark(RawBsonPayloads.decode(lastDocument)));
+	}
+
+	private Object rawBsonMessage(Object payload, Supplier<Document> highWaterMark) {
+		AbstractIntegrationMessageBuilder<Object> message = getMessageBuilderFactory()
+				.withPayload(payload)
+				.setHeader(MessageHeaders.CONTENT_TYPE, RawBsonPayloads.CONTENT_TYPE);
+		if (this.incrementalField != null) {
+			message.setHeader(IntegrationMessageHeaderAccessor.ACKNOWLEDGMENT_CALLBACK,
+					new HighWaterMarkCallback(highWaterMark));
+		}
+		return message.build();
+	}
+
+	private Object withHighWaterMarkCallback(Object payload, Supplier<Document> highWaterMark) {
+		return getMessageBuilderFactory()
+				.withPayload(payload)
+				.setHeader(IntegrationMessageHeaderAccessor.ACKNOWLEDGMENT_CALLBACK,
+						new HighWaterMarkCallback(highWaterMark))
+				.build();
+	}
+
+	private Document highWaterMark(Document document) {
+		return new Document(HIGH_WATER_MARK, document.get(this.incrementalField))
+				.append(ID, document.get(ID));
+	}
+
+	private Query buildQuery() {
+		Object value = evaluateExpression(this.queryExpression);
+		Assert.notNull(value, "'queryExpression' must not evaluate to null");
+		String fields = this.fieldsExpression != null
+				? evaluateExpression(this.fieldsExpression, String.class)
+				: null;
+		Query query;
+		if (value instanceof String) {
+			query = fields != null ? new BasicQuery((String) value, fields) : new BasicQuery((String) value);
+		}
+		else {
+			query = (Query) value;
+			if (fields != null) {
+				project(query, Document.parse(fields));
+			}
+		}
+		if (this.incrementalField != null) {
+			applyHighWaterMark(query);
+		}
+		if (this.limit > 0) {
+			query.limit(this.limit);
+		}
+		if (this.batchSize > 0) {
+			query.cursorBatchSize(this.batchSize);
+		}
+		return query;
+	}
+
+	private void applyHighWaterMark(Query query) {
+		String field = this.incrementalField;
+		Assert.isTrue(!query.getQueryObject().containsKey(field),
+				() -> "The query must not have a condition on the incremental field '" + field + "'");
+		Assert.isTrue(query.getSortObject().isEmpty(),
+				"The query must not be sorted, the documents are sorted by the incremental field");
+		Assert.isTrue(ID.equals(field) || !isExcluded(query.getFieldsObject().get(ID)),
+				"The projection must not exclude the '_id', which is a part of the high-water mark");
+		if (isInclusion(query.getFieldsObject())) {
+			query.fields().include(field);
+		}
+		Document highWaterMark = this.highWaterMark;
+		if (highWaterMark != null) {
+			Criteria criteria = highWaterMarkCriteria(highWaterMark);
+			if (query instanceof BasicQuery) {
+				and(query.getQueryObject(), criteria.getCriteriaObject());
+			}
+			else {
+				query.addCriteria(criteria);
+			}
+		}
+		query.with(ID.equals(field)
+				? Sort.by(Sort.Direction.ASC, field)
+				: Sort.by(Sort.Direction.ASC, field, ID));
+	}
+
+	/**
+	 * The documents after the high-water mark: with a greater value of the field, or the same value
+	 * and a greater {@code _id}. A mark persisted without an {@code _id} only compares the value.
+	 */
+	private Criteria highWaterMarkCriteria(Document highWaterMark) {
+		Object value = highWaterMark.get(HIGH_WATER_MARK);
+		Object id = highWaterMark.get(ID);
+		Criteria after = Criteria.where(this.incrementalField).gt(value);
+		if (id == null || ID.equals(this.incrementalField)) {
+			return after;
+		}
+		return new Criteria().orOperator(after, Criteria.where(this.incrementalField).is(value).and(ID).gt(id));
+	}
+
+	/**
+	 * Add the conditions to the filter of a {@link BasicQuery}, which would otherwise overwrite the ones
+	 * on the same key, e.g. an {@code $or}; these are added under an {@code $and} instead.
+	 */
+	private static void and(Document filter, Document conditions) {
+		for (Map.Entry<String, Object> condition : conditions.entrySet()) {
+			if (!filter.containsKey(condition.getKey())) {
+				filter.put(condition.getKey(), condition.getValue());
+			}
+			else {
+				List<Object> and = new ArrayList<>();
+				Object existing = filter.get("$and");
+				if (existing instanceof List) {
+					and.addAll((List<?>) existing);
+				}
+				and.add(new Document(condition.getKey(), condition.getValue()));
+				filter.put("$and", and);
+			}
+		}
+	}
+
+	private static void project(Query query, Document fields) {
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			Object value = field.getValue();
+			if (isExcluded(value)) {
+				query.fields().exclude(field.getKey());
+			}
+			else if (Boolean.TRUE.equals(value) || value instanceof Number) {
+				query.fields().include(field.getKey());
+			}
+			else {
+				throw new IllegalArgumentException("Only the inclusion and the exclusion of fields are supported "
+						+ "for a Query, not: " + field);
+			}
+		}
+	}
+
+	/**
+	 * Whether the projection only fetches the listed fields, so the incremental one must be added.
+	 */
+	static boolean isInclusion(Document fields) {
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			Object value = field.getValue();
+			if (!"_id".equals(field.getKey()) && !(value instanceof Document) && !isExcluded(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean isExcluded(Object value) {
+		return Boolean.FALSE.equals(value) || (value instanceof Number && ((Number) value).intValue() == 0);
+	}
+
+	private final class HighWaterMarkCallback implements AcknowledgmentCallback {
+
+		private final Supplier<Document> highWaterMark;
+
+		private volatile boolean acknowledged;
+
+		HighWaterMarkCallback(Supplier<Document> highWaterMark) {
+			this.highWaterMark = highWaterMark;
+		}
+
+		@Override
+		public void acknowledge(Status status) {
+			this.acknowledged = true;
+			Document highWaterMark = this.highWaterMark.get();
+			if (Status.ACCEPT.equals(status) && highWaterMark != null && highWaterMark.get(HIGH_WATER_MARK) != null) {
+				MongodbQueryMessageSource.this.highWaterMark = highWaterMark;
+				MongodbQueryMessageSource.this.metadataStore.put(MongodbQueryMessageSource.this.metadataKey,
+						highWaterMark.toJson());
+			}
+		}
+
+		@Override
+		public boolean isAcknowledged() {
+			return this.acknowledged;
+		}
+
+	}
+
+	/**
+	 * Renders the documents of the cursor as JSON while they are iterated,
+	 * remembering the high-water mark of the last one.
+	 */
+	private final class JsonDocumentIterator implements CloseableIterator<String> {
+
+		private final CloseableIterator<Document> cursor;
+
+		private volatile Document highWaterMark;
+
+		JsonDocumentIterator(CloseableIterator<Document> cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.cursor.hasNext();
+		}
+
+		@Override
+		public String next() {
+			Document document = this.cursor.next();
+			if (MongodbQueryMessageSource.this.incrementalField != null) {
+				this.highWaterMark = highWaterMark(document);
+			}
+			return document.toJson();
+		}
+
+		@Override
+		public void close() {
+			this.cursor.close();
+		}
+
+		Document getHighWaterMark() {
+			return this.highWaterMark;
+		}
+
+	}
+
+	/**
+	 * Copies the BSON bytes of the documents of the cursor while they are iterated,
+	 * remembering the last one to read the high-water mark from.
+	 */
+	private final class RawBsonDocumentIterator implements CloseableIterator<byte[]> {
+
+		private final MongoCursor<RawBsonDocument> cursor;
+
+		private volatile RawBsonDocument last;
+
+		RawBsonDocumentIterator(MongoCursor<RawBsonDocument> cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.cursor.hasNext();
+		}
+
+		@Override
+		public byte[] next() {
+			this.last = this.cursor.next();
+			return RawBsonPayloads.bytes(this.last);
+		}
+
+		@Override
+		public void close() {
+			this.cursor.close();
+		}
+
+		Document getHighWaterMark() {
+			RawBsonDocument document = this.last;
+			return document != null && MongodbQueryMessageSource.this.incrementalField != null
+					? highWaterMark(RawBsonPayloads.decode(document))
+					: null;
+		}
+
+	}
+
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.source;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.integration.endpoint.MessageProducerSupport;
+import org.springframework.integration.support.AbstractIntegrationMessageBuilder;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link MessageProducerSupport} which emits every document of a collection matching the
+ * query once, reading ranges of the collection concurrently.
+ * <p>
+ * The collection is split into {@link #setPartitions(int) partitions} of the
+ * {@link #setField(String) field} values, e.g. the {@code _id}, whose boundaries are picked
+ * from a {@code $sample} of the field values of the documents matching the query, so the ranges hold about the same number of
+ * documents whatever the distribution of the values. The ranges are read by
+ * {@link #setConcurrency(int) concurrency} threads, each with its own cursor sorted by the
+ * field and the {@code _id}, so a range which fails is resumed after the last document read,
+ * even when the field values are not unique. The documents are
+ * handed over to the emitting thread through a queue of {@link #setBufferSize(int) bufferSize}
+ * messages, which blocks the readers when the output does not keep up.
+ * <p>
+ * The {@link #setFields(String) fields} projection, if any, is applied to the range queries;
+ * it must not exclude the {@code _id}, unless the collection is split by the {@code _id}.
+ * The documents are emitted as JSON or, in the {@link #setRawBson(boolean) raw BSON} mode,
+ * as the BSON {@code byte[]}s read from the wire, with an {@code application/bson} content type.
+ * <p>
+ * The field should be indexed and hold values of a single BSON type in all the documents, since
+ * the range criteria only match the values of the type of the boundaries. The documents without
+ * the field, or with a {@code null} one, are read as an extra range, sorted by {@code _id}.
+ * <p>
+ * A failure to send a message stops the snapshot: the readers are stopped and the error is logged.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+public class MongodbSnapshotMessageProducer extends MessageProducerSupport {
+
+	private static final int OVERSAMPLING = 10;
+
+	private static final String ID = "_id";
+
+	private final MongoOperations mongoOperations;
+
+	private final String collection;
+
+	private final Document query;
+
+	private String field = "_id";
+
+	private Document fields;
+
+	private int partitions = 16;
+
+	private int concurrency = 4;
+
+	private int bufferSize = 1000;
+
+	private int batchSize;
+
+	private boolean rawBson;
+
+	private int chunkSize;
+
+	private int chunkMaxBytes;
+
+	private long recoveryInterval = 5000;
+
+	private volatile boolean active;
+
+	private volatile ExecutorService readers;
+
+	/**
+	 * Create an instance for the given collection.
+	 *
+	 * @param mongoOperations the {@link MongoOperations} to obtain the collection from.
+	 * @param collection the collection to read.
+	 * @param query the JSON query of the documents to emit.
+	 */
+	public MongodbSnapshotMessageProducer(MongoOperations mongoOperations, String collection, String query) {
+		Assert.notNull(mongoOperations, "'mongoOperations' must not be null");
+		Assert.hasText(collection, "'collection' must not be empty");
+		Assert.hasText(query, "'query' must not be empty");
+		this.mongoOperations = mongoOperations;
+		this.collection = collection;
+		this.query = Document.parse(query);
+	}
+
+	/**
+	 * Set the field to split the collection by. Defaults to {@code _id}.
+	 *
+	 * @param field the field.
+	 */
+	public void setField(String field) {
+		Assert.hasText(field, "'field' must not be empty");
+		this.field = field;
+	}
+
+	/**
+	 * Set the JSON projection of the fields to emit, e.g. <code>{ name: 1, address: 1 }</code>.
+	 *
+	 * @param fields the projection.
+	 */
+	public void setFields(String fields) {
+		this.fields = fields != null ? Document.parse(fields) : null;
+	}
+
+	/**
+	 * Set the number of ranges to split the collection into. Defaults to {@code 16}.
+	 *
+	 * @param partitions the number of ranges.
+	 */
+	public void setPartitions(int partitions) {
+		Assert.isTrue(partitions > 0, "'partitions' must be greater than 0");
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Set the number of ranges read concurrently. Defaults to {@code 4}.
+	 *
+	 * @param concurrency the number of readers.
+	 */
+	public void setConcurrency(int concurrency) {
+		Assert.isTrue(concurrency > 0, "'concurrency' must be greater than 0");
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Set the max number of documents read and not emitted yet. Defaults to {@code 1000}.
+	 *
+	 * @param bufferSize the buffer size.
+	 */
+	public void setBufferSize(int bufferSize) {
+		Assert.isTrue(bufferSize > 0, "'bufferSize' must be greater than 0");
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Set the number of documents per cursor batch, {@code 0} for the server default.
+	 *
+	 * @param batchSize the cursor batch size.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set whether to emit the BSON {@code byte[]}s of the documents instead of their JSON.
+	 *
+	 * @param rawBson the raw BSON flag.
+	 */
+	public void setRawBson(boolean rawBson) {
+		this.rawBson = rawBson;
+	}
+
+	/**
+	 * Set the max number of documents emitted per message, as newline delimited JSON or as
+	 * a sequence of BSON documents; {@code 0} (default) means a message per document.
+	 * A partial chunk is emitted when the readers do not keep up with the output.
+	 *
+	 * @param chunkSize the max number of documents per message.
+	 */
+	public void setChunkSize(int chunkSize) {
+		Assert.isTrue(chunkSize >= 0, "'chunkSize' must not be negative");
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Set the max number of bytes of the chunks of documents; {@code 0} (default) means no limit.
+	 *
+	 * @param chunkMaxBytes the max number of bytes per message.
+	 */
+	public void setChunkMaxBytes(int chunkMaxBytes) {
+		Assert.isTrue(chunkMaxBytes >= 0, "'chunkMaxBytes' must not be negative");
+		this.chunkMaxBytes = chunkMaxBytes;
+	}
+
+	/**
+	 * Set the time in milliseconds to wait before resuming a range after an error.
+	 * Defaults to {@code 5000}.
+	 *
+	 * @param recoveryInterval the recovery interval.
+	 */
+	public void setRecoveryInterval(long recoveryInterval) {
+		this.recoveryInterval = recoveryInterval;
+	}
+
+	@Override
+	public String getComponentType() {
+		return "mongo:snapshot-inbound-channel-adapter";
+	}
+
+	@Override
+	protected void doStart() {
+		Assert.state(ID.equals(this.field) || this.fields == null
+						|| !MongodbQueryMessageSource.isExcluded(this.fields.get(ID)),
+				"The 'fields' must not exclude the '_id', which the reads are resumed after");
+		this.active = true;
+		this.readers = Executors.newFixedThreadPool(this.concurrency + 1,
+				new CustomizableThreadFactory("mongodb-snapshot-"));
+		this.readers.execute(this::snapshot);
+	}
+
+	@Override
+	protected void doStop() {
+		this.active = false;
+		if (this.readers != null) {
+			this.readers.shutdownNow();
+		}
+	}
+
+	private void snapshot() {
+		ExecutorService readers = this.readers;
+		try {
+			snapshot(readers);
+		}
+		catch (RuntimeException e) {
+			if (this.active) {
+				logger.error("The snapshot of the '" + this.collection + "' collection failed; stopping the readers", e);
+			}
+			this.active = false;
+			readers.shutdownNow();
+		}
+	}
+
+	private void snapshot(ExecutorService readers) {
+		long start = System.currentTimeMillis();
+		BlockingQueue<Object> buffer = new ArrayBlockingQueue<>(this.bufferSize);
+		List<Bson> ranges = ranges();
+		List<Runnable> reads = new ArrayList<>(ranges.size() + 1);
+		for (Bson range : ranges) {
+			reads.add(() -> read(range, this.field, buffer));
+		}
+		if (ranges.size() > 1 && !ID.equals(this.field)) {
+			// the bounded ranges only match the values of the type of the boundaries
+			reads.add(() -> read(Filters.and(this.query, Filters.eq(this.field, null)), ID, buffer));
+		}
+		AtomicInteger remaining = new AtomicInteger(reads.size());
+		for (Runnable read : reads) {
+			readers.execute(() -> {
+				try {
+					read.run();
+				}
+				finally {
+					remaining.decrementAndGet();
+				}
+			});
+		}
+		DocumentChunk chunk = this.chunkSize > 0 ? new DocumentChunk(this.chunkSize, this.chunkMaxBytes) : null;
+		long count = 0;
+		try {
+			while (this.active && (remaining.get() > 0 || !buffer.isEmpty())) {
+				Object document = buffer.poll(100, TimeUnit.MILLISECONDS);
+				if (document == null) {
+					// the readers are behind: do not hold back the documents of a partial chunk
+					if (chunk != null && !chunk.isEmpty()) {
+						send(chunk.drain(), DocumentChunk.contentType(this.rawBson));
+					}
+					continue;
+				}
+				count++;
+				if (chunk == null) {
+					send(document, this.rawBson ? RawBsonPayloads.CONTENT_TYPE : null);
+					continue;
+				}
+				byte[] encoded = DocumentChunk.encode(document);
+				if (!chunk.fits(encoded)) {
+					send(chunk.drain(), DocumentChunk.contentType(this.rawBson));
+				}
+				chunk.add(encoded);
+				if (chunk.isFull()) {
+					send(chunk.drain(), DocumentChunk.contentType(this.rawBson));
+				}
+			}
+			if (this.active && chunk != null && !chunk.isEmpty()) {
+				send(chunk.drain(), DocumentChunk.contentType(this.rawBson));
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (this.active) {
+			logger.info("The snapshot of the '" + this.collection + "' collection emitted " + count
+					+ " documents from " + reads.size() + " ranges in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+
+	private void send(Object payload, String contentType) {
+		AbstractIntegrationMessageBuilder<Object> message = getMessageBuilderFactory().withPayload(payload);
+		if (contentType != null) {
+			message.setHeader(MessageHeaders.CONTENT_TYPE, contentType);
+		}
+		sendMessage(message.build());
+	}
+
+	/**
+	 * Split the field values into ranges holding about the same number of documents.
+	 */
+	private List<Bson> ranges() {
+		List<Object> boundaries = new ArrayList<>();
+		if (this.partitions > 1) {
+			List<Bson> pipeline = Arrays.asList(
+					Aggregates.match(this.query),
+					Aggregates.sample(this.partitions * OVERSAMPLING),
+					Aggregates.project(Projections.include(this.field)),
+					Aggregates.sort(Sorts.ascending(this.field)));
+			List<Object> sample = new ArrayList<>();
+			for (Document document : this.mongoOperations.getCollection(this.collection)
+					.aggregate(pipeline)
+					.allowDiskUse(true)) {
+
+				Object value = document.get(this.field);
+				if (value != null) {
+					sample.add(value);
+				}
+			}
+			for (int i = 1; i < this.partitions; i++) {
+				Object boundary = sample.isEmpty() ? null : sample.get(i * sample.size() / this.partitions);
+				if (boundary != null && (boundaries.isEmpty()
+						|| !Objects.equals(boundaries.get(boundaries.size() - 1), boundary))) {
+					boundaries.add(boundary);
+				}
+			}
+		}
+		List<Bson> ranges = new ArrayList<>(boundaries.size() + 1);
+		Object lower = null;
+		for (Object upper : boundaries) {
+			ranges.add(range(lower, upper));
+			lower = upper;
+		}
+		ranges.add(range(lower, null));
+		return ranges;
+	}
+
+	private Bson range(Object lower, Object upper) {
+		List<Bson> criteria = new ArrayList<>();
+		criteria.add(this.query);
+		if (lower != null) {
+			criteria.add(Filters.gte(this.field, lower));
+		}
+		if (upper != null) {
+			criteria.add(Filters.lt(this.field, upper));
+		}
+		return Filters.and(criteria);
+	}
+
+	/**
+	 * Read the range into the buffer sorted by the field and the {@code _id}, resuming after the last
+	 * document read on errors.
+	 */
+	private void read(Bson range, String sortField, BlockingQueue<Object> buffer) {
+		long read = 0;
+		Document projection = null;
+		if (this.fields != null) {
+			projection = new Document(this.fields);
+			if (MongodbQueryMessageSource.isInclusion(projection)) {
+				projection.put(sortField, 1);
+			}
+		}
+		Bson sort = ID.equals(sortField) ? Sorts.ascending(ID) : Sorts.ascending(sortField, ID);
+		RawBsonDocument last = null;
+		while (this.active) {
+			Bson filter = last != null ? Filters.and(range, resumeAfter(last, sortField)) : range;
+			try (MongoCursor<RawBsonDocument> cursor = collection().find(filter)
+					.projection(projection)
+					.sort(sort)
+					.batchSize(this.batchSize)
+					.iterator()) {
+
+				while (this.active && cursor.hasNext()) {
+					RawBsonDocument document = cursor.next();
+					buffer.put(this.rawBson ? RawBsonPayloads.bytes(document) : document.toJson());
+					last = document;
+					read++;
+				}
+				return;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (Exception e) {
+				if (this.active) {
+					logger.error("A range of the '" + this.collection + "' collection snapshot failed after "
+							+ read + " documents; resuming in " + this.recoveryInterval + "ms", e);
+					try {
+						Thread.sleep(this.recoveryInterval);
+					}
+					catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The criteria of the documents sorted after the provided one, by the field then the {@code _id},
+	 * so the documents sharing its field value are not skipped.
+	 */
+	private static Bson resumeAfter(RawBsonDocument last, String sortField) {
+		BsonValue id = last.get(ID);
+		if (ID.equals(sortField)) {
+			return Filters.gt(ID, id);
+		}
+		BsonValue value = last.get(sortField);
+		return Filters.or(Filters.gt(sortField, value),
+				Filters.and(Filters.eq(sortField, value), Filters.gt(ID, id)));
+	}
+
+	private MongoCollection<RawBsonDocument> collection() {
+		return this.mongoOperations.getCollection(this.collection).withDocumentClass(RawBsonDocument.class);
+	}
+
+}
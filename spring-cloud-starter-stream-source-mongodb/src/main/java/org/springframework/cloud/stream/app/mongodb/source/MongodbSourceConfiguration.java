@@ -28,16 +28,23 @@ import org.springframework.context.annotation.Import;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.expression.Expression;
 import org.springframework.expression.common.LiteralExpression;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.core.MessageSource;
 import org.springframework.integration.dsl.IntegrationFlow;
 import org.springframework.integration.dsl.IntegrationFlowBuilder;
 import org.springframework.integration.dsl.IntegrationFlows;
+import org.springframework.integration.metadata.MetadataStore;
 import org.springframework.integration.mongodb.inbound.MongoDbMessageSource;
+import org.springframework.integration.mongodb.metadata.MongoDbMetadataStore;
 import org.springframework.messaging.MessageChannel;
 
 /**
  * A starter configuration for MongoDB Source applications.
  * Produces {@link MongoDbMessageSource} which polls collection
- * with the query after startup according to the polling properties.
+ * with the query after startup according to the polling properties,
+ * a {@link MongodbAggregationMessageSource} which polls it with an aggregation pipeline,
+ * a {@link MongodbChangeStreamMessageProducer} in the change stream mode
+ * or a {@link MongodbSnapshotMessageProducer} in the snapshot mode.
  *
  * @author Adam Zwickey
  * @author Artem Bilan
@@ -45,7 +52,7 @@ import org.springframework.messaging.MessageChannel;
  */
 @EnableBinding(Source.class)
 @EnableConfigurationProperties({ MongodbSourceProperties.class, TriggerPropertiesMaxMessagesDefaultUnlimited.class })
-@Import(TriggerConfiguration.class)
+@Import({ TriggerConfiguration.class, MongodbClientConfiguration.class })
 public class MongodbSourceConfiguration {
 
 	@Autowired
@@ -58,12 +65,42 @@ public class MongodbSourceConfiguration {
 	@Autowired
 	private MongoTemplate mongoTemplate;
 
+	@Autowired(required = false)
+	private MetadataStore metadataStore;
+
 	@Bean
 	public IntegrationFlow startFlow() throws Exception {
-		IntegrationFlowBuilder flow = IntegrationFlows.from(mongoSource());
-		if (config.isSplit()) {
+		if (config.getMode() == MongodbSourceProperties.Mode.CHANGE_STREAM) {
+			return IntegrationFlows.from(changeStreamProducer())
+					.channel(output)
+					.get();
+		}
+		if (config.getMode() == MongodbSourceProperties.Mode.SNAPSHOT) {
+			return IntegrationFlows.from(snapshotProducer())
+					.channel(output)
+					.get();
+		}
+		boolean incremental = config.getIncremental().getField() != null;
+		MessageSource<?> messageSource;
+		if (config.getMode() == MongodbSourceProperties.Mode.AGGREGATION) {
+			messageSource = aggregationSource();
+		}
+		else if (incremental || config.isStream() || fieldsExpression() != null || rawBson()) {
+			messageSource = querySource();
+		}
+		else {
+			messageSource = mongoSource();
+		}
+		IntegrationFlowBuilder flow = IntegrationFlows.from(messageSource);
+		if (config.isSplit() && config.getChunkSize() > 0) {
+			flow.split(chunkingSplitter());
+		}
+		else if (config.isSplit()) {
 			flow.split();
 		}
+		if (incremental) {
+			flow.headerFilter(IntegrationMessageHeaderAccessor.ACKNOWLEDGMENT_CALLBACK);
+		}
 		flow.channel(output);
 		return flow.get();
 	}
@@ -74,13 +111,129 @@ public class MongodbSourceConfiguration {
 	 * @return a {@link MongoDbMessageSource} instance
 	 */
 	protected MongoDbMessageSource mongoSource() {
-		Expression queryExpression = (this.config.getQueryExpression() != null
-				? this.config.getQueryExpression()
-				: new LiteralExpression(this.config.getQuery()));
-		MongoDbMessageSource mongoDbMessageSource = new MongoDbMessageSource(this.mongoTemplate, queryExpression);
+		MongoDbMessageSource mongoDbMessageSource = new MongoDbMessageSource(this.mongoTemplate, queryExpression());
 		mongoDbMessageSource.setCollectionNameExpression(new LiteralExpression(this.config.getCollection()));
 		mongoDbMessageSource.setEntityClass(String.class);
 		return mongoDbMessageSource;
 	}
 
+	/**
+	 * The inheritors can consider to override this method for their purpose or just adjust options
+	 * for the returned instance
+	 * @return a {@link MongodbQueryMessageSource} instance for the incremental or the stream mode,
+	 * a projection or the raw BSON output
+	 */
+	protected MongodbQueryMessageSource querySource() {
+		MongodbSourceProperties.Incremental incremental = this.config.getIncremental();
+		MongodbQueryMessageSource messageSource =
+				new MongodbQueryMessageSource(this.mongoTemplate, queryExpression(), this.config.getCollection());
+		messageSource.setFieldsExpression(fieldsExpression());
+		messageSource.setStream(this.config.isStream());
+		messageSource.setRawBson(rawBson());
+		messageSource.setBatchSize(this.config.getBatchSize());
+		if (incremental.getField() != null) {
+			messageSource.setIncrementalField(incremental.getField());
+			messageSource.setLimit(incremental.getLimit());
+			messageSource.setMetadataStore(resolveMetadataStore());
+			if (incremental.getMetadataKey() != null) {
+				messageSource.setMetadataKey(incremental.getMetadataKey());
+			}
+		}
+		return messageSource;
+	}
+
+	/**
+	 * The inheritors can consider to override this method for their purpose or just adjust options
+	 * for the returned instance
+	 * @return a {@link MongodbAggregationMessageSource} instance for the aggregation mode
+	 */
+	protected MongodbAggregationMessageSource aggregationSource() {
+		MongodbSourceProperties.Aggregation aggregation = this.config.getAggregation();
+		MongodbAggregationMessageSource messageSource =
+				new MongodbAggregationMessageSource(this.mongoTemplate, aggregation.getPipeline(),
+						this.config.getCollection());
+		messageSource.setAllowDiskUse(aggregation.isAllowDiskUse());
+		messageSource.setMaxTime(aggregation.getMaxTime());
+		messageSource.setStream(this.config.isStream());
+		messageSource.setRawBson(rawBson());
+		messageSource.setBatchSize(this.config.getBatchSize());
+		return messageSource;
+	}
+
+	/**
+	 * The inheritors can consider to override this method for their purpose or just adjust options
+	 * for the returned instance.
+	 * The resume tokens are persisted in the {@link MetadataStore} bean, if any,
+	 * or in the {@code mongodb.metadata-collection} otherwise.
+	 * @return a {@link MongodbChangeStreamMessageProducer} instance
+	 */
+	protected MongodbChangeStreamMessageProducer changeStreamProducer() {
+		MongodbSourceProperties.ChangeStream changeStream = this.config.getChangeStream();
+		MongodbChangeStreamMessageProducer producer =
+				new MongodbChangeStreamMessageProducer(this.mongoTemplate, this.config.getCollection(),
+						resolveMetadataStore());
+		producer.setPipeline(changeStream.getPipeline());
+		producer.setFullDocument(changeStream.getFullDocument());
+		if (changeStream.getResumeTokenKey() != null) {
+			producer.setResumeTokenKey(changeStream.getResumeTokenKey());
+		}
+		producer.setResumeTokenPersistInterval(changeStream.getResumeTokenPersistInterval());
+		producer.setMaxAwaitTime(changeStream.getMaxAwaitTime());
+		return producer;
+	}
+
+	/**
+	 * The inheritors can consider to override this method for their purpose or just adjust options
+	 * for the returned instance
+	 * @return a {@link MongodbSnapshotMessageProducer} instance
+	 */
+	protected MongodbSnapshotMessageProducer snapshotProducer() {
+		MongodbSourceProperties.Snapshot snapshot = this.config.getSnapshot();
+		MongodbSnapshotMessageProducer producer =
+				new MongodbSnapshotMessageProducer(this.mongoTemplate, this.config.getCollection(),
+						this.config.getQuery());
+		producer.setField(snapshot.getField());
+		producer.setFields(this.config.getFields());
+		producer.setPartitions(snapshot.getPartitions());
+		producer.setConcurrency(snapshot.getConcurrency());
+		producer.setBufferSize(snapshot.getBufferSize());
+		producer.setBatchSize(this.config.getBatchSize());
+		producer.setRawBson(rawBson());
+		producer.setChunkSize(this.config.getChunkSize());
+		producer.setChunkMaxBytes(this.config.getChunkMaxBytes());
+		return producer;
+	}
+
+	private Expression queryExpression() {
+		return (this.config.getQueryExpression() != null
+				? this.config.getQueryExpression()
+				: new LiteralExpression(this.config.getQuery()));
+	}
+
+	/**
+	 * The inheritors can consider to override this method for their purpose or just adjust options
+	 * for the returned instance
+	 * @return a {@link MongodbChunkingSplitter} instance emitting the documents in chunks
+	 */
+	protected MongodbChunkingSplitter chunkingSplitter() {
+		return new MongodbChunkingSplitter(this.config.getChunkSize(), this.config.getChunkMaxBytes(), rawBson());
+	}
+
+	private boolean rawBson() {
+		return this.config.getOutputFormat() == MongodbSourceProperties.OutputFormat.BSON;
+	}
+
+	private Expression fieldsExpression() {
+		if (this.config.getFieldsExpression() != null) {
+			return this.config.getFieldsExpression();
+		}
+		return this.config.getFields() != null ? new LiteralExpression(this.config.getFields()) : null;
+	}
+
+	private MetadataStore resolveMetadataStore() {
+		return (this.metadataStore != null
+				? this.metadataStore
+				: new MongoDbMetadataStore(this.mongoTemplate, this.config.getMetadataCollection()));
+	}
+
 }
@@ -16,11 +16,17 @@
 
 package org.springframework.cloud.stream.app.mongodb.source;
 
+import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotEmpty;
 
+import com.mongodb.client.model.changestream.FullDocument;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.expression.Expression;
+import org.springframework.util.StringUtils;
 import org.springframework.validation.annotation.Validated;
 
 /**
@@ -48,11 +54,72 @@ public class MongodbSourceProperties {
 	 */
 	private Expression queryExpression;
 
+	/**
+	 * The JSON projection of the fields to fetch, e.g. '{ name: 1, address: 1 }'
+	 */
+	private String fields;
+
+	/**
+	 * The SpEL expression of the JSON projection of the fields to fetch
+	 */
+	private Expression fieldsExpression;
+
 	/**
 	 * Whether to split the query result as individual messages.
 	 */
 	private boolean split = true;
 
+	/**
+	 * The max number of documents per message, as newline delimited JSON or a sequence of BSON documents,
+	 * 0 means a message per document
+	 */
+	@Min(0)
+	private int chunkSize;
+
+	/**
+	 * The max number of bytes of the chunks of documents, 0 means no limit
+	 */
+	@Min(0)
+	private int chunkMaxBytes = 1024 * 1024;
+
+	/**
+	 * Whether to stream the query cursor into individual messages instead of loading the whole result.
+	 */
+	private boolean stream;
+
+	/**
+	 * The number of documents fetched from the server per cursor batch, 0 means the driver default.
+	 */
+	private int batchSize;
+
+	/**
+	 * The source mode: 'poll' the collection with the query or an 'aggregation' pipeline, tail its 'change-stream' or read a 'snapshot' of it once.
+	 */
+	private Mode mode = Mode.POLL;
+
+	/**
+	 * The format of the emitted documents: 'json' text or the 'bson' bytes as read from the server.
+	 */
+	private OutputFormat outputFormat = OutputFormat.JSON;
+
+	/**
+	 * The MongoDB collection to persist the change stream resume tokens and incremental high-water marks in,
+	 * when there is no MetadataStore bean
+	 */
+	private String metadataCollection = "metadataStore";
+
+	private final ChangeStream changeStream = new ChangeStream();
+
+	private final Incremental incremental = new Incremental();
+
+	private final Aggregation aggregation = new Aggregation();
+
+	@Valid
+	private final Snapshot snapshot = new Snapshot();
+
+	@Valid
+	private final Pool pool = new Pool();
+
 	@NotEmpty(message = "Query is required")
 	public String getQuery() {
 		return query;
@@ -70,6 +137,22 @@ public class MongodbSourceProperties {
 		this.queryExpression = queryExpression;
 	}
 
+	public String getFields() {
+		return fields;
+	}
+
+	public void setFields(String fields) {
+		this.fields = fields;
+	}
+
+	public Expression getFieldsExpression() {
+		return fieldsExpression;
+	}
+
+	public void setFieldsExpression(Expression fieldsExpression) {
+		this.fieldsExpression = fieldsExpression;
+	}
+
 	public void setCollection(String collection) {
 		this.collection = collection;
 	}
@@ -87,4 +170,444 @@ public class MongodbSourceProperties {
 		this.split = split;
 	}
 
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkMaxBytes() {
+		return chunkMaxBytes;
+	}
+
+	public void setChunkMaxBytes(int chunkMaxBytes) {
+		this.chunkMaxBytes = chunkMaxBytes;
+	}
+
+	@AssertTrue(message = "The 'chunk-size' requires 'split'")
+	private boolean isSplitWhenChunking() {
+		return this.chunkSize == 0 || this.split;
+	}
+
+	public boolean isStream() {
+		return stream;
+	}
+
+	public void setStream(boolean stream) {
+		this.stream = stream;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	@AssertTrue(message = "The 'stream' mode requires 'split'")
+	private boolean isSplitWhenStreaming() {
+		return !this.stream || this.split;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	public OutputFormat getOutputFormat() {
+		return outputFormat;
+	}
+
+	public void setOutputFormat(OutputFormat outputFormat) {
+		this.outputFormat = outputFormat;
+	}
+
+	@AssertTrue(message = "The 'bson' output format requires 'split'")
+	private boolean isSplitWhenBson() {
+		return this.outputFormat != OutputFormat.BSON || this.split;
+	}
+
+	@AssertTrue(message = "The 'change-stream' mode does not support the 'bson' output format")
+	private boolean isJsonWhenChangeStream() {
+		return this.outputFormat != OutputFormat.BSON || this.mode != Mode.CHANGE_STREAM;
+	}
+
+	public String getMetadataCollection() {
+		return metadataCollection;
+	}
+
+	public void setMetadataCollection(String metadataCollection) {
+		this.metadataCollection = metadataCollection;
+	}
+
+	public ChangeStream getChangeStream() {
+		return changeStream;
+	}
+
+	public Incremental getIncremental() {
+		return incremental;
+	}
+
+	public Aggregation getAggregation() {
+		return aggregation;
+	}
+
+	@AssertTrue(message = "The 'aggregation' mode requires 'aggregation.pipeline'")
+	private boolean isPipelineWhenAggregating() {
+		return this.mode != Mode.AGGREGATION || StringUtils.hasText(this.aggregation.getPipeline());
+	}
+
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public Pool getPool() {
+		return pool;
+	}
+
+	public enum Mode {
+
+		/**
+		 * Run the query against the collection on every trigger.
+		 */
+		POLL,
+
+		/**
+		 * Run the aggregation pipeline against the collection on every trigger.
+		 */
+		AGGREGATION,
+
+		/**
+		 * Emit the change events of the collection as they happen.
+		 */
+		CHANGE_STREAM,
+
+		/**
+		 * Emit the documents matching the query once, reading ranges of the collection concurrently.
+		 */
+		SNAPSHOT
+
+	}
+
+	public static class ChangeStream {
+
+		/**
+		 * The aggregation pipeline stages to filter the change events, as a JSON array
+		 */
+		private String pipeline;
+
+		/**
+		 * Whether to look up the current full document for update events
+		 */
+		private FullDocument fullDocument = FullDocument.DEFAULT;
+
+		/**
+		 * The metadata store key for the resume token, defaults to 'mongodb.change-stream.<collection>'
+		 */
+		private String resumeTokenKey;
+
+		/**
+		 * How often, in milliseconds, the last resume token is persisted
+		 */
+		private long resumeTokenPersistInterval = 1000;
+
+		/**
+		 * The max time in milliseconds the server waits for new change events
+		 */
+		private long maxAwaitTime = 1000;
+
+		public String getPipeline() {
+			return pipeline;
+		}
+
+		public void setPipeline(String pipeline) {
+			this.pipeline = pipeline;
+		}
+
+		public FullDocument getFullDocument() {
+			return fullDocument;
+		}
+
+		public void setFullDocument(FullDocument fullDocument) {
+			this.fullDocument = fullDocument;
+		}
+
+		public String getResumeTokenKey() {
+			return resumeTokenKey;
+		}
+
+		public void setResumeTokenKey(String resumeTokenKey) {
+			this.resumeTokenKey = resumeTokenKey;
+		}
+
+		public long getResumeTokenPersistInterval() {
+			return resumeTokenPersistInterval;
+		}
+
+		public void setResumeTokenPersistInterval(long resumeTokenPersistInterval) {
+			this.resumeTokenPersistInterval = resumeTokenPersistInterval;
+		}
+
+		public long getMaxAwaitTime() {
+			return maxAwaitTime;
+		}
+
+		public void setMaxAwaitTime(long maxAwaitTime) {
+			this.maxAwaitTime = maxAwaitTime;
+		}
+
+	}
+
+	public static class Incremental {
+
+		/**
+		 * The monotonic field, e.g. '_id' or 'updatedAt', to poll the collection incrementally by
+		 */
+		private String field;
+
+		/**
+		 * The max number of documents fetched per poll in the incremental mode, 0 means no limit
+		 */
+		private int limit = 1000;
+
+		/**
+		 * The metadata store key for the high-water mark, defaults to 'mongodb.incremental.<collection>'
+		 */
+		private String metadataKey;
+
+		public String getField() {
+			return field;
+		}
+
+		public void setField(String field) {
+			this.field = field;
+		}
+
+		public int getLimit() {
+			return limit;
+		}
+
+		public void setLimit(int limit) {
+			this.limit = limit;
+		}
+
+		public String getMetadataKey() {
+			return metadataKey;
+		}
+
+		public void setMetadataKey(String metadataKey) {
+			this.metadataKey = metadataKey;
+		}
+
+	}
+
+	public enum OutputFormat {
+
+		/**
+		 * Render the documents as extended JSON {@code String}s.
+		 */
+		JSON,
+
+		/**
+		 * Emit the BSON {@code byte[]}s of the documents, with an {@code application/bson} content type.
+		 */
+		BSON
+
+	}
+
+	public static class Aggregation {
+
+		/**
+		 * The aggregation pipeline stages to run instead of the query, as a JSON array
+		 */
+		private String pipeline;
+
+		/**
+		 * Whether the pipeline stages may write temporary data to disk when they exceed the memory limit
+		 */
+		private boolean allowDiskUse;
+
+		/**
+		 * The max time in milliseconds the server may spend on the aggregation, 0 means no limit
+		 */
+		@Min(0)
+		private long maxTime;
+
+		public String getPipeline() {
+			return pipeline;
+		}
+
+		public void setPipeline(String pipeline) {
+			this.pipeline = pipeline;
+		}
+
+		public boolean isAllowDiskUse() {
+			return allowDiskUse;
+		}
+
+		public void setAllowDiskUse(boolean allowDiskUse) {
+			this.allowDiskUse = allowDiskUse;
+		}
+
+		public long getMaxTime() {
+			return maxTime;
+		}
+
+		public void setMaxTime(long maxTime) {
+			this.maxTime = maxTime;
+		}
+
+	}
+
+	public static class Snapshot {
+
+		/**
+		 * The indexed field, holding values of a single type, to split the collection into ranges by
+		 */
+		@NotBlank
+		private String field = "_id";
+
+		/**
+		 * The number of ranges to split the collection into
+		 */
+		@Min(1)
+		private int partitions = 16;
+
+		/**
+		 * The number of ranges read concurrently
+		 */
+		@Min(1)
+		private int concurrency = 4;
+
+		/**
+		 * The max number of documents read ahead of the output
+		 */
+		@Min(1)
+		private int bufferSize = 1000;
+
+		public String getField() {
+			return field;
+		}
+
+		public void setField(String field) {
+			this.field = field;
+		}
+
+		public int getPartitions() {
+			return partitions;
+		}
+
+		public void setPartitions(int partitions) {
+			this.partitions = partitions;
+		}
+
+		public int getConcurrency() {
+			return concurrency;
+		}
+
+		public void setConcurrency(int concurrency) {
+			this.concurrency = concurrency;
+		}
+
+		public int getBufferSize() {
+			return bufferSize;
+		}
+
+		public void setBufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+
+	}
+
+	public static class Pool {
+
+		/**
+		 * The max number of connections per server
+		 */
+		@Min(1)
+		private Integer maxSize;
+
+		/**
+		 * The min number of connections per server kept open
+		 */
+		@Min(0)
+		private Integer minSize;
+
+		/**
+		 * The max time in milliseconds to wait for a connection of an exhausted pool
+		 */
+		private Long maxWaitTime;
+
+		/**
+		 * The max number of waiters for a connection of an exhausted pool, as a multiple of 'maxSize'
+		 */
+		@Min(1)
+		private Integer waitQueueMultiple;
+
+		/**
+		 * The max time in milliseconds a connection may stay idle before it is closed
+		 */
+		private Long maxConnectionIdleTime;
+
+		/**
+		 * The max time in milliseconds a connection may live before it is closed
+		 */
+		private Long maxConnectionLifeTime;
+
+		public Integer getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(Integer maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public Integer getMinSize() {
+			return minSize;
+		}
+
+		public void setMinSize(Integer minSize) {
+			this.minSize = minSize;
+		}
+
+		public Long getMaxWaitTime() {
+			return maxWaitTime;
+		}
+
+		public void setMaxWaitTime(Long maxWaitTime) {
+			this.maxWaitTime = maxWaitTime;
+		}
+
+		public Integer getWaitQueueMultiple() {
+			return waitQueueMultiple;
+		}
+
+		public void setWaitQueueMultiple(Integer waitQueueMultiple) {
+			this.waitQueueMultiple = waitQueueMultiple;
+		}
+
+		public Long getMaxConnectionIdleTime() {
+			return maxConnectionIdleTime;
+		}
+
+		public void setMaxConnectionIdleTime(Long maxConnectionIdleTime) {
+			this.maxConnectionIdleTime = maxConnectionIdleTime;
+		}
+
+		public Long getMaxConnectionLifeTime() {
+			return maxConnectionLifeTime;
+		}
+
+		public void setMaxConnectionLifeTime(Long maxConnectionLifeTime) {
+			this.maxConnectionLifeTime = maxConnectionLifeTime;
+		}
+
+	}
+
 }
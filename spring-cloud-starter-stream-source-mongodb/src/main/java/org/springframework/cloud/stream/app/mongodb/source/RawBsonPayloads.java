@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.cloud.stream.app.mongodb.source;
+
+import org.bson.ByteBuf;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+/**
+ * The helpers for the sources emitting the documents as they come from the wire,
+ * i.e. as the BSON bytes of a {@link RawBsonDocument}, instead of rendering them as JSON.
+ *
+ * @author Hitesh Panchal
+ *
+ */
+final class RawBsonPayloads {
+
+	/**
+	 * The content type of the raw BSON payloads.
+	 */
+	static final String CONTENT_TYPE = "application/bson";
+
+	private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+	private RawBsonPayloads() {
+	}
+
+	/**
+	 * @param document the raw document.
+	 * @return a copy of the BSON bytes of the document.
+	 */
+	static byte[] bytes(RawBsonDocument document) {
+		ByteBuf buffer = document.getByteBuffer();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @param document the raw document.
+	 * @return the document with its values decoded as Java values, e.g. an {@code ObjectId} or a {@code Date}.
+	 */
+	static Document decode(RawBsonDocument document) {
+		return document.decode(DOCUMENT_CODEC);
+	}
+
+}
@@ -17,17 +17,24 @@
 package org.springframework.cloud.stream.app.mongodb.source;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.isOneOf;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -38,6 +45,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.cloud.stream.messaging.Source;
 import org.springframework.cloud.stream.test.binder.MessageCollector;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
@@ -178,6 +186,210 @@ public abstract class MongodbSourceApplicationTests {
 	}
 
 
+	@TestPropertySource(properties = {
+			"mongodb.query={ 'greeting': 'hola' }",
+			"trigger.fixedDelay=1",
+			"mongodb.stream=true",
+			"mongodb.batch-size=1" })
+	public static class StreamTests extends MongodbSourceApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Message<?> received =
+					this.messageCollector
+							.forChannel(this.source.output())
+							.poll(10, TimeUnit.SECONDS);
+			assertThat(received, notNullValue());
+			assertThat((String) received.getPayload(), containsString("hola"));
+			assertThat((String) received.getPayload(), not(containsString("hello")));
+		}
+
+	}
+
+	@TestPropertySource(properties = {
+			"trigger.fixedDelay=1",
+			"mongodb.incremental.field=_id",
+			"mongodb.incremental.limit=1" })
+	public static class IncrementalTests extends MongodbSourceApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Message<?> received =
+					this.messageCollector
+							.forChannel(this.source.output())
+							.poll(10, TimeUnit.SECONDS);
+			assertThat(received, notNullValue());
+			assertThat((String) received.getPayload(), containsString("hello"));
+
+			received = this.messageCollector
+					.forChannel(this.source.output())
+					.poll(10, TimeUnit.SECONDS);
+			assertThat(received, notNullValue());
+			assertThat((String) received.getPayload(), containsString("hola"));
+
+			received = this.messageCollector
+					.forChannel(this.source.output())
+					.poll(3, TimeUnit.SECONDS);
+			assertThat(received, nullValue());
+		}
+
+	}
+
+	@TestPropertySource(properties = {
+			"trigger.fixedDelay=1",
+			"mongodb.incremental.field=greeting",
+			"mongodb.incremental.limit=1" })
+	public static class IncrementalNonUniqueFieldTests extends MongodbSourceApplicationTests {
+
+		@Autowired
+		private MongoClient mongoClient;
+
+		@Before
+		public void insertSameGreeting() {
+			MongoCollection<Document> collection = this.mongoClient.getDatabase("test").getCollection("testing");
+			collection.insertOne(new Document("greeting", "hola").append("name", "baz"));
+			collection.insertOne(new Document("greeting", "hola").append("name", "qux"));
+		}
+
+		@Test
+		public void test() throws InterruptedException {
+			List<String> names = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				Message<?> received =
+						this.messageCollector
+								.forChannel(this.source.output())
+								.poll(10, TimeUnit.SECONDS);
+				assertThat(received, notNullValue());
+				names.add(Document.parse((String) received.getPayload()).getString("name"));
+			}
+			assertThat(names, equalTo(Arrays.asList("foo", "bar", "baz", "qux")));
+
+			Message<?> received = this.messageCollector
+					.forChannel(this.source.output())
+					.poll(3, TimeUnit.SECONDS);
+			assertThat(received, nullValue());
+		}
+
+	}
+
+	@TestPropertySource(properties = {
+			"trigger.fixedDelay=1",
+			"mongodb.fields={ greeting: 1, _id: 0 }" })
+	public static class ProjectionTests extends MongodbSourceApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Message<?> received =
+					this.messageCollector
+							.forChannel(this.source.output())
+							.poll(10, TimeUnit.SECONDS);
+			assertThat(received, notNullValue());
+			assertThat((String) received.getPayload(), containsString("hello"));
+			assertThat((String) received.getPayload(), not(containsString("foo")));
+			assertThat((String) received.getPayload(), not(containsString("_id")));
+		}
+
+	}
+
+	@TestPropertySource(properties = {
+			"trigger.fixedDelay=1",
+			"mongodb.mode=aggregation",
+			"mongodb.aggregation.pipeline=[{ $match: { greeting: 'hola' } }, { $project: { _id: 0, name: 1 } }]",
+			"mongodb.aggregation.allow-disk-use=true" })
+	public static class AggregationTests extends MongodbSourceApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Message<?> received =
+					this.messageCollector
+							.forChannel(this.source.output())
+							.poll(10, TimeUnit.SECONDS);
+			assertThat(received, notNullValue());
+			assertThat((String) received.getPayload(), containsString("bar"));
+			assertThat((String) received.getPayload(), not(containsString("hola")));
+		}
+
+	}
+
+	@TestPropertySource(properties = {
+			"trigger.fixedDelay=1",
+			"mongodb.output-format=bson" })
+	public static class BsonTests extends MongodbSourceApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Message<?> received =
+					this.messageCollector
+							.forChannel(this.source.output())
+							.poll(10, TimeUnit.SECONDS);
+			assertThat(received, notNullValue());
+			assertThat(received.getPayload(), instanceOf(byte[].class));
+			assertThat(received.getHeaders().get(MessageHeaders.CONTENT_TYPE).toString(),
+					containsString("application/bson"));
+			RawBsonDocument document = new RawBsonDocument((byte[]) received.getPayload());
+			assertThat(document.getString("greeting").getValue(), isOneOf("hello", "hola"));
+		}
+
+	}
+
+	@TestPropertySource(properties = {
+			"trigger.fixedDelay=1",
+			"mongodb.chunk-size=10" })
+	public static class ChunkTests extends MongodbSourceApplicationTests {
+
+		@Test
+		public void test() throws InterruptedException {
+			Message<?> received =
+					this.messageCollector
+							.forChannel(this.source.output())
+							.poll(10, TimeUnit.SECONDS);
+			assertThat(received, notNullValue());
+			assertThat(received.getPayload(), instanceOf(byte[].class));
+			assertThat(received.getHeaders().get(MessageHeaders.CONTENT_TYPE).toString(),
+					containsString("application/x-ndjson"));
+			String[] documents = new String((byte[]) received.getPayload(), StandardCharsets.UTF_8).split("\n");
+			assertThat(documents.length, equalTo(2));
+			assertThat(documents[0], containsString("hello"));
+			assertThat(documents[1], containsString("hola"));
+		}
+
+	}
+
+	@TestPropertySource(properties = {
+			"mongodb.mode=snapshot",
+			"mongodb.snapshot.partitions=2",
+			"mongodb.snapshot.concurrency=2" })
+	public static class SnapshotTests extends MongodbSourceApplicationTests {
+
+		@Autowired
+		private MongodbSnapshotMessageProducer snapshotProducer;
+
+		@Test
+		public void test() throws InterruptedException {
+			this.snapshotProducer.stop();
+			this.messageCollector.forChannel(this.source.output()).clear();
+			this.snapshotProducer.start();
+
+			List<String> payloads = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				Message<?> received =
+						this.messageCollector
+								.forChannel(this.source.output())
+								.poll(10, TimeUnit.SECONDS);
+				assertThat(received, notNullValue());
+				payloads.add((String) received.getPayload());
+			}
+			assertThat(payloads, hasItems(containsString("hello"), containsString("hola")));
+
+			Message<?> received = this.messageCollector
+					.forChannel(this.source.output())
+					.poll(3, TimeUnit.SECONDS);
+			assertThat(received, nullValue());
+		}
+
+	}
+
+
 	@SpringBootApplication
 	public static class MongoSourceApplication {
 